@@ -0,0 +1,290 @@
+package com.cleansine.sound;
+
+import com.cleansine.sound.provider.LineBridge;
+
+import javax.annotation.Nonnull;
+import javax.sound.sampled.*;
+
+/**
+ * LineBridge between two simulated devices with deliberately mismatched clocks, no sound card needed.
+ * Arguments: [seconds] [output clock deviation in ppm].
+ * Without drift compensation the playback buffer would under/overrun after latency / deviation seconds.
+ */
+public class LineBridgeSimulation {
+    private static final int LATENCY_MS = 100;
+    private static final int BUFFER_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        double outPpm = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+        AudioFormat inFormat = new AudioFormat(44100, 16, 2, true, false);
+        AudioFormat outFormat = new AudioFormat(48000, 32, 2, true, false);
+        SimulatedTargetLine input = new SimulatedTargetLine(inFormat, 0);
+        SimulatedSourceLine output = new SimulatedSourceLine(outFormat, outPpm);
+        input.open(inFormat, (int) (inFormat.getFrameRate() * BUFFER_MS / 1000) * inFormat.getFrameSize());
+        output.open(outFormat, (int) (outFormat.getFrameRate() * BUFFER_MS / 1000) * outFormat.getFrameSize());
+
+        LineBridge bridge = new LineBridge(input, output, LATENCY_MS);
+        System.out.printf("Input %.0f Hz exact, output %.0f Hz %+.0f ppm, target latency %d ms%n",
+                inFormat.getSampleRate(), outFormat.getSampleRate(), outPpm, LATENCY_MS);
+        bridge.start();
+        for (int i = 1; i <= seconds; ++i) {
+            Thread.sleep(1000);
+            System.out.printf("%3ds latency %7.2f ms, ratio %.6f, estimated drift %+7.1f ppm, underruns %d, overruns %d%n",
+                    i, bridge.getLatencyFrames() * 1000 / outFormat.getSampleRate(), bridge.getRatio(), bridge.getDriftPpm(),
+                    output.underruns, input.overruns);
+        }
+        bridge.stop();
+        input.close();
+        output.close();
+    }
+
+    /**
+     * Device frames advance with the wall clock at the nominal rate deviated by ppm.
+     */
+    private abstract static class SimulatedLine implements DataLine {
+        protected final AudioFormat format;
+        private final double rate;
+        protected int bufferFrames;
+        private boolean isOpen;
+        private boolean isRunning;
+        private long startNanos;
+        private long stoppedFrames;
+
+        SimulatedLine(@Nonnull AudioFormat format, double ppm) {
+            this.format = format;
+            this.rate = format.getSampleRate() * (1.0 + ppm / 1e6);
+        }
+
+        protected synchronized void doOpen(int bufferSize) {
+            bufferFrames = bufferSize / format.getFrameSize();
+            isOpen = true;
+        }
+
+        protected synchronized long getClockFrames() {
+            if (!isRunning)
+                return stoppedFrames;
+            return stoppedFrames + (long) ((System.nanoTime() - startNanos) * rate / 1e9);
+        }
+
+        // waiting for the device clock
+        protected static void sleep() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void start() {
+            if (!isRunning) {
+                startNanos = System.nanoTime();
+                isRunning = true;
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            stoppedFrames = getClockFrames();
+            isRunning = false;
+        }
+
+        @Override
+        public synchronized boolean isRunning() {
+            return isRunning;
+        }
+
+        @Override
+        public boolean isActive() {
+            return isRunning();
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return bufferFrames * format.getFrameSize();
+        }
+
+        @Override
+        public int getFramePosition() {
+            return (int) getLongFramePosition();
+        }
+
+        @Override
+        public long getLongFramePosition() {
+            return getClockFrames();
+        }
+
+        @Override
+        public long getMicrosecondPosition() {
+            return (long) (getClockFrames() * 1e6 / format.getFrameRate());
+        }
+
+        @Override
+        public float getLevel() {
+            return AudioSystem.NOT_SPECIFIED;
+        }
+
+        @Override
+        public void drain() {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void open() {
+            doOpen(format.getFrameSize() * (int) format.getFrameRate());
+        }
+
+        @Override
+        public synchronized void close() {
+            isOpen = false;
+            isRunning = false;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public Control[] getControls() {
+            return new Control[0];
+        }
+
+        @Override
+        public boolean isControlSupported(Control.Type control) {
+            return false;
+        }
+
+        @Override
+        public Control getControl(Control.Type control) {
+            throw new IllegalArgumentException("No controls");
+        }
+
+        @Override
+        public void addLineListener(LineListener listener) {
+        }
+
+        @Override
+        public void removeLineListener(LineListener listener) {
+        }
+    }
+
+    private static class SimulatedTargetLine extends SimulatedLine implements TargetDataLine {
+        private long readFrames;
+        volatile int overruns;
+
+        SimulatedTargetLine(@Nonnull AudioFormat format, double ppm) {
+            super(format, ppm);
+        }
+
+        @Override
+        public Line.Info getLineInfo() {
+            return new DataLine.Info(TargetDataLine.class, format);
+        }
+
+        @Override
+        public void open(AudioFormat format, int bufferSize) {
+            doOpen(bufferSize);
+        }
+
+        @Override
+        public void open(AudioFormat format) {
+            open();
+        }
+
+        // captured frames not read yet, the oldest ones dropped on overrun
+        private synchronized long getCaptured() {
+            long captured = getClockFrames() - readFrames;
+            if (captured > bufferFrames) {
+                ++overruns;
+                readFrames += captured - bufferFrames;
+                captured = bufferFrames;
+            }
+            return captured;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int frames = len / format.getFrameSize();
+            while (getCaptured() < frames && isRunning())
+                sleep();
+            synchronized (this) {
+                readFrames += frames;
+            }
+            // silence
+            java.util.Arrays.fill(b, off, off + frames * format.getFrameSize(), (byte) 0);
+            return frames * format.getFrameSize();
+        }
+
+        @Override
+        public int available() {
+            return (int) getCaptured() * format.getFrameSize();
+        }
+    }
+
+    private static class SimulatedSourceLine extends SimulatedLine implements SourceDataLine {
+        private long writtenFrames;
+        // device frames played, silence on underrun
+        private long playedFrames;
+        private long lastClockFrames;
+        volatile int underruns;
+
+        SimulatedSourceLine(@Nonnull AudioFormat format, double ppm) {
+            super(format, ppm);
+        }
+
+        @Override
+        public Line.Info getLineInfo() {
+            return new DataLine.Info(SourceDataLine.class, format);
+        }
+
+        @Override
+        public void open(AudioFormat format, int bufferSize) {
+            doOpen(bufferSize);
+        }
+
+        @Override
+        public void open(AudioFormat format) {
+            open();
+        }
+
+        private synchronized long getQueued() {
+            long clockFrames = getClockFrames();
+            long delta = clockFrames - lastClockFrames;
+            lastClockFrames = clockFrames;
+            long queued = writtenFrames - playedFrames;
+            if (delta > queued) {
+                if (isRunning())
+                    ++underruns;
+                playedFrames = writtenFrames;
+            } else
+                playedFrames += delta;
+            return writtenFrames - playedFrames;
+        }
+
+        @Override
+        public int write(byte[] b, int off, int len) {
+            int frames = len / format.getFrameSize();
+            while (bufferFrames - getQueued() < frames && isRunning())
+                sleep();
+            synchronized (this) {
+                writtenFrames += frames;
+            }
+            return frames * format.getFrameSize();
+        }
+
+        @Override
+        public int available() {
+            return (int) (bufferFrames - getQueued()) * format.getFrameSize();
+        }
+    }
+}
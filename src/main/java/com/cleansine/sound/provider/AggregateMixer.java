@@ -0,0 +1,228 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.*;
+import java.util.*;
+
+/**
+ * Several SimpleMixers exposed as one mixer with a single wide-channel SourceDataLine, e.g. identical USB interfaces
+ * driving a loudspeaker array. The channels of the line are the channels of the member devices in the member order.
+ * Only sample formats (encoding, rate, bits, endianness) supported by all members are offered, each member with its max.
+ * channels of the sample format.
+ */
+public final class AggregateMixer extends SimpleLine implements Mixer {
+    private final Mixer.Info mixerInfo;
+    private final SimpleMixer[] members;
+    // aggregate format -> member formats
+    private final Map<AudioFormat, AudioFormat[]> memberFormatsByFormat;
+    private final DataLine.Info[] sourceLineInfos;
+    private final List<Line> sourceLines = new ArrayList<>();
+
+    public AggregateMixer(@Nonnull String name, @Nonnull SimpleMixer... members) {
+        super(new Line.Info(Mixer.class), null);
+        if (members.length == 0)
+            throw new IllegalArgumentException("No member mixers");
+        this.members = members.clone();
+        this.mixerInfo = new AggregateMixerInfo(name, createDescription(members));
+        this.memberFormatsByFormat = createFormats(members);
+        if (memberFormatsByFormat.isEmpty())
+            this.sourceLineInfos = new DataLine.Info[0];
+        else
+            this.sourceLineInfos = new DataLine.Info[]{new DataLine.Info(SourceDataLine.class,
+                    memberFormatsByFormat.keySet().toArray(new AudioFormat[0]), 32, AudioSystem.NOT_SPECIFIED)};
+    }
+
+    @Nonnull
+    private static String createDescription(@Nonnull SimpleMixer[] members) {
+        StringJoiner joiner = new StringJoiner(" + ");
+        for (SimpleMixer member : members)
+            joiner.add(member.getMixerInfo().getName());
+        return joiner.toString();
+    }
+
+    @Nonnull
+    private static Map<AudioFormat, AudioFormat[]> createFormats(@Nonnull SimpleMixer[] members) {
+        // per member: sample format key -> the format with max. channels
+        List<Map<String, AudioFormat>> widestFormats = new ArrayList<>();
+        for (SimpleMixer member : members) {
+            Map<String, AudioFormat> widest = new LinkedHashMap<>();
+            for (Line.Info info : member.getSourceLineInfo(new Line.Info(SourceDataLine.class))) {
+                if (!(info instanceof SimpleDataLineInfo))
+                    continue;
+                // only formats the device plays directly, the members are split/resampled by the aggregate itself
+                for (AudioFormat format : ((SimpleDataLineInfo) info).getDirectFormats()) {
+                    if (!SimpleMixerProvider.isFullySpecifiedFormat(format))
+                        continue;
+                    widest.merge(getSampleKey(format), format, (a, b) -> b.getChannels() > a.getChannels() ? b : a);
+                }
+            }
+            widestFormats.add(widest);
+        }
+        Map<AudioFormat, AudioFormat[]> formats = new LinkedHashMap<>();
+        for (Map.Entry<String, AudioFormat> entry : widestFormats.get(0).entrySet()) {
+            AudioFormat[] memberFormats = new AudioFormat[members.length];
+            int channels = 0;
+            for (int i = 0; i < members.length; ++i) {
+                memberFormats[i] = widestFormats.get(i).get(entry.getKey());
+                if (memberFormats[i] == null)
+                    break;
+                channels += memberFormats[i].getChannels();
+            }
+            if (memberFormats[members.length - 1] == null)
+                continue;
+            AudioFormat first = entry.getValue();
+            int sampleBytes = first.getFrameSize() / first.getChannels();
+            formats.put(new DistinctableAudioFormat(first.getEncoding(), first.getSampleRate(), first.getSampleSizeInBits(),
+                    channels, sampleBytes * channels, first.isBigEndian()), memberFormats);
+        }
+        return formats;
+    }
+
+    @Nonnull
+    private static String getSampleKey(@Nonnull AudioFormat format) {
+        return format.getEncoding() + "/" + format.getSampleRate() + "/" + format.getSampleSizeInBits() + "/"
+                + format.getFrameSize() / format.getChannels() + "/" + format.isBigEndian();
+    }
+
+    /**
+     * @return member formats of the aggregate format or null if not supported
+     */
+    @Nullable
+    AudioFormat[] getMemberFormats(@Nonnull AudioFormat format) {
+        for (Map.Entry<AudioFormat, AudioFormat[]> entry : memberFormatsByFormat.entrySet()) {
+            if (format.matches(entry.getKey()))
+                return entry.getValue();
+        }
+        return null;
+    }
+
+    @Nonnull
+    SimpleMixer[] getMembers() {
+        return members;
+    }
+
+    @Override
+    public Mixer.Info getMixerInfo() {
+        return mixerInfo;
+    }
+
+    @Override
+    public Line.Info[] getSourceLineInfo() {
+        return sourceLineInfos.clone();
+    }
+
+    @Override
+    public Line.Info[] getTargetLineInfo() {
+        return new Line.Info[0];
+    }
+
+    @Override
+    public Line.Info[] getSourceLineInfo(Line.Info info) {
+        return Arrays.stream(sourceLineInfos)
+                .filter(info::matches)
+                .toArray(Line.Info[]::new);
+    }
+
+    @Override
+    public Line.Info[] getTargetLineInfo(Line.Info info) {
+        return new Line.Info[0];
+    }
+
+    @Override
+    public boolean isLineSupported(Line.Info info) {
+        return getSourceLineInfo(info).length > 0;
+    }
+
+    @Override
+    public Line getLine(Line.Info info) {
+        if (!isLineSupported(info) || !info.getLineClass().isAssignableFrom(AggregateSourceDataLine.class))
+            throw new IllegalArgumentException("Unsupported line info: " + info);
+        AudioFormat format = null;
+        int bufferSize = AudioSystem.NOT_SPECIFIED;
+        if (info instanceof DataLine.Info) {
+            DataLine.Info dataInfo = (DataLine.Info) info;
+            bufferSize = dataInfo.getMaxBufferSize();
+            for (AudioFormat requested : dataInfo.getFormats()) {
+                for (AudioFormat supported : memberFormatsByFormat.keySet()) {
+                    if (requested.matches(supported)) {
+                        format = supported;
+                        break;
+                    }
+                }
+                if (format != null)
+                    break;
+            }
+        }
+        if (format == null) {
+            // the last = usually the richest format, like SimpleMixer
+            AudioFormat[] formats = sourceLineInfos[0].getFormats();
+            format = formats[formats.length - 1];
+        }
+        return new AggregateSourceDataLine(sourceLineInfos[0], format, bufferSize, this);
+    }
+
+    @Override
+    public int getMaxLines(Line.Info info) {
+        return isLineSupported(info) ? AudioSystem.NOT_SPECIFIED : 0;
+    }
+
+    @Override
+    public Line[] getSourceLines() {
+        synchronized (sourceLines) {
+            return sourceLines.toArray(new Line[0]);
+        }
+    }
+
+    @Override
+    public Line[] getTargetLines() {
+        return new Line[0];
+    }
+
+    void addLine(@Nonnull Line line) {
+        synchronized (sourceLines) {
+            if (!sourceLines.contains(line))
+                sourceLines.add(line);
+        }
+        setOpen(true);
+    }
+
+    void removeLine(@Nonnull Line line) {
+        synchronized (sourceLines) {
+            sourceLines.remove(line);
+        }
+    }
+
+    @Override
+    public void synchronize(Line[] lines, boolean maintainSync) {
+        throw new IllegalArgumentException("Synchronization not supported.");
+    }
+
+    @Override
+    public void unsynchronize(Line[] lines) {
+        throw new IllegalArgumentException("Synchronization not supported.");
+    }
+
+    @Override
+    public boolean isSynchronizationSupported(Line[] lines, boolean maintainSync) {
+        return false;
+    }
+
+    @Override
+    public void open() {
+        setOpen(true);
+    }
+
+    @Override
+    public void close() {
+        for (Line line : getSourceLines())
+            line.close();
+        setOpen(false);
+    }
+
+    private static final class AggregateMixerInfo extends Mixer.Info {
+        AggregateMixerInfo(@Nonnull String name, @Nonnull String description) {
+            super(name, "csjsound", description, "1");
+        }
+    }
+}
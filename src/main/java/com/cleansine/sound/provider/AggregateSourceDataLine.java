@@ -0,0 +1,455 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.*;
+import java.util.concurrent.Semaphore;
+
+/**
+ * SourceDataLine of AggregateMixer. Each write is split to the member lines by channels, the first member is written
+ * by the calling thread, the other members in parallel by own writer threads.
+ * The first member is the clock master, the other members are resampled with ratios keeping their queued frames
+ * equal to the master (see {@link DriftController}), the inter-device skew stays bounded.
+ */
+class AggregateSourceDataLine extends SimpleLine implements SourceDataLine {
+    private static final Logger logger = LoggerFactory.getLogger(AggregateSourceDataLine.class);
+    // frames split and written in one round
+    private static final int CHUNK_FRAMES = 4096;
+
+    private final AggregateMixer aggregateMixer;
+    private final AudioFormat defaultFormat;
+    private final int defaultBufferSize;
+    private AudioFormat format;
+    private int frameBytes;
+    @Nullable
+    private volatile Member[] members;
+    private volatile int maxSkewFrames;
+
+    AggregateSourceDataLine(@Nonnull DataLine.Info info, @Nonnull AudioFormat format, int bufferSize, @Nonnull AggregateMixer aggregateMixer) {
+        super(info, null);
+        this.aggregateMixer = aggregateMixer;
+        this.defaultFormat = format;
+        this.defaultBufferSize = bufferSize;
+        this.format = format;
+        this.frameBytes = format.getFrameSize();
+    }
+
+    @Override
+    public void open() throws LineUnavailableException {
+        open(defaultFormat, defaultBufferSize);
+    }
+
+    @Override
+    public void open(AudioFormat format) throws LineUnavailableException {
+        open(format, AudioSystem.NOT_SPECIFIED);
+    }
+
+    @Override
+    public synchronized void open(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        if (isOpen()) {
+            if (!format.matches(this.format))
+                throw new IllegalStateException("Line is already open with format " + this.format + " and bufferSize " + getBufferSize());
+            return;
+        }
+        AudioFormat[] memberFormats = aggregateMixer.getMemberFormats(format);
+        if (memberFormats == null)
+            throw new IllegalArgumentException("Unsupported format " + format);
+        SimpleMixer[] mixers = aggregateMixer.getMembers();
+        Member[] newMembers = new Member[mixers.length];
+        int bufferFrames = bufferSize > 0 ? bufferSize / format.getFrameSize() : AudioSystem.NOT_SPECIFIED;
+        int channelOffsetBytes = 0;
+        try {
+            for (int i = 0; i < mixers.length; ++i) {
+                AudioFormat memberFormat = memberFormats[i];
+                SourceDataLine line = (SourceDataLine) mixers[i].getLine(new DataLine.Info(SourceDataLine.class, memberFormat));
+                line.open(memberFormat, bufferFrames > 0 ? bufferFrames * memberFormat.getFrameSize() : AudioSystem.NOT_SPECIFIED);
+                newMembers[i] = new Member(i, line, channelOffsetBytes);
+                channelOffsetBytes += memberFormat.getFrameSize();
+            }
+        } catch (LineUnavailableException | RuntimeException e) {
+            for (Member member : newMembers) {
+                if (member != null)
+                    member.line.close();
+            }
+            throw e;
+        }
+        this.format = format;
+        this.frameBytes = format.getFrameSize();
+        for (int i = 1; i < newMembers.length; ++i)
+            newMembers[i].startWriter();
+        members = newMembers;
+        aggregateMixer.addLine(this);
+        setOpen(true);
+    }
+
+    @Override
+    public synchronized void close() {
+        Member[] ms = members;
+        if (ms == null)
+            return;
+        members = null;
+        for (Member member : ms) {
+            member.stopWriter();
+            member.line.close();
+        }
+        aggregateMixer.removeLine(this);
+        setOpen(false);
+    }
+
+    @Override
+    public int write(byte[] b, int off, int len) {
+        synchronized (this) {
+            Member[] ms = members;
+            if (ms == null)
+                return 0;
+            if (len % frameBytes != 0)
+                throw new IllegalArgumentException("Requesting to write non-integral number of frames (" + len + " bytes, " + "frameBytes = " + frameBytes + " bytes)");
+            // remainders of the previous write first, the members must not get out of step
+            if (!writeRound(ms))
+                return 0;
+            int frames = len / frameBytes;
+            int written = 0;
+            while (written < frames) {
+                int chunk = Math.min(CHUNK_FRAMES, frames - written);
+                if (!ms[0].line.isRunning()) {
+                    // not running, accepting only what fits into all members, like SimpleSourceDataLine
+                    chunk = Math.min(chunk, getFreeFrames(ms));
+                    if (chunk <= 0)
+                        break;
+                }
+                for (Member member : ms)
+                    member.split(b, off + written * frameBytes, chunk, frameBytes);
+                boolean isComplete = writeRound(ms);
+                // taken by all members, a remainder of a member stopped meanwhile is written by the next write/drain
+                written += chunk;
+                updateDrift(ms);
+                if (!isComplete)
+                    break;
+            }
+            return written * frameBytes;
+        }
+    }
+
+    /**
+     * Writes the split chunk and the remainders to all members in parallel.
+     *
+     * @return true if no member keeps a remainder
+     */
+    private boolean writeRound(@Nonnull Member[] ms) {
+        for (int i = 1; i < ms.length; ++i)
+            ms[i].go.release();
+        ms[0].writeRound();
+        for (int i = 1; i < ms.length; ++i)
+            ms[i].done.acquireUninterruptibly();
+        for (Member member : ms) {
+            if (member.pendingLen > 0)
+                return false;
+        }
+        return true;
+    }
+
+    // aggregate frames fitting into all members without waiting
+    private static int getFreeFrames(@Nonnull Member[] ms) {
+        int frames = Integer.MAX_VALUE;
+        for (Member member : ms)
+            frames = Math.min(frames, member.getFreeFrames());
+        return frames;
+    }
+
+    // resampling ratios of the non-master members
+    private void updateDrift(@Nonnull Member[] ms) {
+        if (!ms[0].line.isRunning())
+            return;
+        long nanos = System.nanoTime();
+        long masterPos = ms[0].line.getLongFramePosition();
+        double masterQueued = ms[0].getQueuedFrames();
+        int maxSkew = 0;
+        for (int i = 1; i < ms.length; ++i) {
+            Member member = ms[i];
+            double skew = member.getQueuedFrames() - masterQueued;
+            maxSkew = Math.max(maxSkew, (int) Math.abs(skew));
+            if (member.controller != null)
+                member.resampler.setRatio(member.controller.update(member.targetQueuedFrames + skew, masterPos,
+                        member.line.getLongFramePosition(), nanos));
+        }
+        maxSkewFrames = maxSkew;
+    }
+
+    /**
+     * @return max. difference of the frames queued in a member line vs. the master line, at the last write
+     */
+    public int getMaxSkewFrames() {
+        return maxSkewFrames;
+    }
+
+    @Override
+    public void drain() {
+        Member[] ms;
+        synchronized (this) {
+            ms = members;
+            if (ms == null)
+                return;
+            writeRound(ms);
+        }
+        for (Member member : ms)
+            member.line.drain();
+    }
+
+    @Override
+    public void flush() {
+        Member[] ms = members;
+        if (ms == null)
+            return;
+        for (Member member : ms)
+            member.line.flush();
+        synchronized (this) {
+            for (Member member : ms)
+                member.reset();
+        }
+    }
+
+    @Override
+    public void start() {
+        Member[] ms = members;
+        if (ms == null)
+            return;
+        // the master last, the slaves are already playing when the master position starts
+        for (int i = ms.length - 1; i >= 0; --i)
+            ms[i].line.start();
+    }
+
+    @Override
+    public void stop() {
+        Member[] ms = members;
+        if (ms == null)
+            return;
+        for (Member member : ms)
+            member.line.stop();
+    }
+
+    @Override
+    public boolean isRunning() {
+        Member[] ms = members;
+        return ms != null && ms[0].line.isRunning();
+    }
+
+    @Override
+    public boolean isActive() {
+        Member[] ms = members;
+        return ms != null && ms[0].line.isActive();
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        Member[] ms = members;
+        if (ms == null)
+            return AudioSystem.NOT_SPECIFIED;
+        int frames = Integer.MAX_VALUE;
+        for (Member member : ms)
+            frames = Math.min(frames, member.line.getBufferSize() / member.frameBytes);
+        return frames * frameBytes;
+    }
+
+    @Override
+    public int available() {
+        Member[] ms = members;
+        if (ms == null)
+            return 0;
+        int frames = Integer.MAX_VALUE;
+        for (Member member : ms)
+            frames = Math.min(frames, member.line.available() / member.frameBytes);
+        return frames * frameBytes;
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        Member[] ms = members;
+        return ms == null ? 0 : ms[0].line.getLongFramePosition();
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        Member[] ms = members;
+        return ms == null ? 0 : ms[0].line.getMicrosecondPosition();
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    /**
+     * One member device: its line, the channels split from the aggregate frames, the writer thread and drift compensation.
+     */
+    private static final class Member {
+        private final int index;
+        private final SourceDataLine line;
+        private final int channelOffsetBytes;
+        private final int frameBytes;
+        private final int channels;
+        private final byte[] split;
+        @Nullable
+        private final SampleCodec codec;
+        @Nullable
+        private final Resampler resampler;
+        @Nullable
+        private DriftController controller;
+        private final double targetQueuedFrames;
+        @Nullable
+        private final float[] samples;
+        @Nullable
+        private final float[] resampled;
+        @Nullable
+        private final byte[] resampledBytes;
+        private final int maxResampledFrames;
+        // frames split and not converted yet
+        private int splitFrames;
+        // bytes of the converted chunk not written to the line yet
+        private byte[] pending;
+        private int pendingOffset;
+        private int pendingLen;
+        private final Semaphore go = new Semaphore(0);
+        private final Semaphore done = new Semaphore(0);
+        private volatile boolean isWriting;
+        @Nullable
+        private Thread writer;
+
+        Member(int index, @Nonnull SourceDataLine line, int channelOffsetBytes) {
+            this.index = index;
+            this.line = line;
+            this.channelOffsetBytes = channelOffsetBytes;
+            AudioFormat memberFormat = line.getFormat();
+            this.frameBytes = memberFormat.getFrameSize();
+            this.channels = memberFormat.getChannels();
+            this.split = new byte[CHUNK_FRAMES * frameBytes];
+            this.pending = split;
+            // the master is not resampled
+            this.codec = index == 0 ? null : SampleCodec.create(memberFormat);
+            this.targetQueuedFrames = line.getBufferSize() / (2.0 * frameBytes);
+            if (codec != null) {
+                this.resampler = new Resampler(channels, 1.0, CHUNK_FRAMES);
+                this.controller = new DriftController(1.0, memberFormat.getSampleRate(), targetQueuedFrames);
+                // the ratio stays within DriftController limits
+                this.maxResampledFrames = (int) (CHUNK_FRAMES * 1.01) + 2;
+                this.samples = new float[CHUNK_FRAMES * channels];
+                this.resampled = new float[maxResampledFrames * channels];
+                this.resampledBytes = new byte[maxResampledFrames * frameBytes];
+            } else {
+                if (index > 0)
+                    logger.warn("No drift compensation of member " + index + " in format " + memberFormat);
+                this.resampler = null;
+                this.maxResampledFrames = 0;
+                this.samples = null;
+                this.resampled = null;
+                this.resampledBytes = null;
+            }
+        }
+
+        void split(@Nonnull byte[] b, int off, int frames, int aggregateFrameBytes) {
+            int src = off + channelOffsetBytes;
+            int dst = 0;
+            for (int f = 0; f < frames; ++f) {
+                System.arraycopy(b, src, split, dst, frameBytes);
+                src += aggregateFrameBytes;
+                dst += frameBytes;
+            }
+            splitFrames = frames;
+        }
+
+        void writeRound() {
+            if (splitFrames > 0) {
+                if (resampler == null) {
+                    pending = split;
+                    pendingLen = splitFrames * frameBytes;
+                } else {
+                    codec.decodeFloat(split, 0, samples, 0, splitFrames * channels);
+                    resampler.write(samples, 0, splitFrames);
+                    int produced = resampler.read(resampled, 0, maxResampledFrames);
+                    codec.encodeFloat(resampled, 0, resampledBytes, 0, produced * channels);
+                    pending = resampledBytes;
+                    pendingLen = produced * frameBytes;
+                }
+                pendingOffset = 0;
+                splitFrames = 0;
+            }
+            if (pendingLen > 0) {
+                // partial only if the line was stopped/flushed meanwhile
+                int written = line.write(pending, pendingOffset, pendingLen);
+                pendingOffset += written;
+                pendingLen -= written;
+            }
+        }
+
+        // input frames fitting into the line without waiting
+        int getFreeFrames() {
+            int free = line.available() / frameBytes;
+            if (resampler == null)
+                return free;
+            // the ratio stays within DriftController limits
+            return Math.max(0, (int) ((free - resampler.getBufferedFrames() - 2) / 1.01));
+        }
+
+        double getQueuedFrames() {
+            double queued = (double) (line.getBufferSize() - line.available()) / frameBytes;
+            return resampler == null ? queued : queued + resampler.getBufferedFrames();
+        }
+
+        void reset() {
+            splitFrames = 0;
+            pendingLen = 0;
+            if (resampler != null) {
+                resampler.reset();
+                resampler.setRatio(1.0);
+                controller = new DriftController(1.0, line.getFormat().getSampleRate(), targetQueuedFrames);
+            }
+        }
+
+        void startWriter() {
+            isWriting = true;
+            Thread t = new Thread(() -> {
+                while (true) {
+                    go.acquireUninterruptibly();
+                    if (!isWriting)
+                        break;
+                    try {
+                        writeRound();
+                    } catch (RuntimeException e) {
+                        logger.error("Writing to member " + index + " failed", e);
+                    } finally {
+                        done.release();
+                    }
+                }
+            }, "csjsound aggregate writer " + index);
+            t.setDaemon(true);
+            writer = t;
+            t.start();
+        }
+
+        void stopWriter() {
+            Thread t = writer;
+            if (t == null)
+                return;
+            isWriting = false;
+            go.release();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+}
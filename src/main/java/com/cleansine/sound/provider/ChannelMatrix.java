@@ -0,0 +1,226 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Gains from source channels to destination channels, dst[d] = sum(gain[d][s] * src[s]).
+ * A matrix with at most a single 1.0 gain per destination channel only selects channels (remap, drop, silence-fill)
+ * and is applied to int samples bit-perfect.
+ * <p>
+ * The default matrices can be replaced with property csjsoundChannelMatrix.SRCtoDST, rows of the destination channels
+ * separated by ';', gains of the source channels separated by ','. E.g. swapping stereo channels:
+ * -DcsjsoundChannelMatrix.2to2=0,1;1,0
+ */
+final class ChannelMatrix {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelMatrix.class);
+    private static final String PROPERTY_PREFIX = "csjsoundChannelMatrix.";
+    // -3dB for center and surround channels in stereo downmix
+    private static final float MINUS_3DB = 0.7071f;
+
+    private final int srcChannels;
+    private final int dstChannels;
+    // dstChannels * srcChannels, destination-major
+    private final float[] gains;
+    // for selection matrices: source channel of each destination channel, -1 = silence
+    @Nullable
+    private final int[] sourceIndex;
+
+    private ChannelMatrix(int srcChannels, int dstChannels, @Nonnull float[] gains) {
+        this.srcChannels = srcChannels;
+        this.dstChannels = dstChannels;
+        this.gains = gains;
+        this.sourceIndex = findSourceIndex(srcChannels, dstChannels, gains);
+    }
+
+    /**
+     * @return matrix configured by the property or the default one, null if the matrix is identity
+     */
+    @Nullable
+    static ChannelMatrix create(int srcChannels, int dstChannels) {
+        float[] gains = parseProperty(srcChannels, dstChannels);
+        if (gains == null)
+            gains = createDefault(srcChannels, dstChannels);
+        ChannelMatrix matrix = new ChannelMatrix(srcChannels, dstChannels, gains);
+        return matrix.isIdentity() ? null : matrix;
+    }
+
+    int getSrcChannels() {
+        return srcChannels;
+    }
+
+    int getDstChannels() {
+        return dstChannels;
+    }
+
+    /**
+     * @return true if the matrix only copies/drops channels and fills silence, no mixing
+     */
+    boolean isSelection() {
+        return sourceIndex != null;
+    }
+
+    /**
+     * @return true if no source channel is dropped or mixed, i.e. the conversion is lossless
+     */
+    boolean isLossless() {
+        if (sourceIndex == null)
+            return false;
+        boolean[] used = new boolean[srcChannels];
+        for (int s : sourceIndex) {
+            if (s >= 0)
+                used[s] = true;
+        }
+        for (boolean u : used) {
+            if (!u)
+                return false;
+        }
+        return true;
+    }
+
+    void mix(@Nonnull float[] src, int srcOff, @Nonnull float[] dst, int dstOff, int frames) {
+        if (sourceIndex != null) {
+            select(src, srcOff, dst, dstOff, frames);
+            return;
+        }
+        for (int f = 0; f < frames; ++f) {
+            int g = 0;
+            for (int d = 0; d < dstChannels; ++d) {
+                float sum = 0f;
+                for (int s = 0; s < srcChannels; ++s)
+                    sum += gains[g++] * src[srcOff + s];
+                dst[dstOff + d] = sum;
+            }
+            srcOff += srcChannels;
+            dstOff += dstChannels;
+        }
+    }
+
+    /**
+     * Only for selection matrices.
+     */
+    void select(@Nonnull int[] src, int srcOff, @Nonnull int[] dst, int dstOff, int frames) {
+        int[] index = sourceIndex;
+        for (int f = 0; f < frames; ++f) {
+            for (int d = 0; d < dstChannels; ++d) {
+                int s = index[d];
+                dst[dstOff + d] = s < 0 ? 0 : src[srcOff + s];
+            }
+            srcOff += srcChannels;
+            dstOff += dstChannels;
+        }
+    }
+
+    private void select(@Nonnull float[] src, int srcOff, @Nonnull float[] dst, int dstOff, int frames) {
+        int[] index = sourceIndex;
+        for (int f = 0; f < frames; ++f) {
+            for (int d = 0; d < dstChannels; ++d) {
+                int s = index[d];
+                dst[dstOff + d] = s < 0 ? 0f : src[srcOff + s];
+            }
+            srcOff += srcChannels;
+            dstOff += dstChannels;
+        }
+    }
+
+    private boolean isIdentity() {
+        if (srcChannels != dstChannels || sourceIndex == null)
+            return false;
+        for (int d = 0; d < dstChannels; ++d) {
+            if (sourceIndex[d] != d)
+                return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private static int[] findSourceIndex(int srcChannels, int dstChannels, @Nonnull float[] gains) {
+        int[] index = new int[dstChannels];
+        for (int d = 0; d < dstChannels; ++d) {
+            index[d] = -1;
+            for (int s = 0; s < srcChannels; ++s) {
+                float gain = gains[d * srcChannels + s];
+                if (gain == 0f)
+                    continue;
+                if (gain != 1f || index[d] >= 0)
+                    return null;
+                index[d] = s;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Stereo downmix of standard mono/stereo/5.1/7.1 layouts (L R C LFE Ls Rs Lb Rb), mono upmix to L+R,
+     * otherwise same channels copied, the rest dropped or filled with silence.
+     */
+    @Nonnull
+    private static float[] createDefault(int srcChannels, int dstChannels) {
+        float[] gains = new float[dstChannels * srcChannels];
+        if (srcChannels == 1) {
+            for (int d = 0; d < Math.min(2, dstChannels); ++d)
+                gains[d] = 1f;
+        } else if (dstChannels == 1 && srcChannels == 2) {
+            gains[0] = 0.5f;
+            gains[1] = 0.5f;
+        } else if (dstChannels == 2 && (srcChannels == 6 || srcChannels == 8)) {
+            for (int d = 0; d < 2; ++d) {
+                int row = d * srcChannels;
+                gains[row + d] = 1f;
+                gains[row + 2] = MINUS_3DB;
+                // LFE dropped
+                for (int s = 4 + d; s < srcChannels; s += 2)
+                    gains[row + s] = MINUS_3DB;
+                normalizeRow(gains, row, srcChannels);
+            }
+        } else {
+            for (int d = 0; d < Math.min(srcChannels, dstChannels); ++d)
+                gains[d * srcChannels + d] = 1f;
+        }
+        return gains;
+    }
+
+    // no clipping of full-scale signals
+    private static void normalizeRow(@Nonnull float[] gains, int row, int len) {
+        float sum = 0f;
+        for (int i = row; i < row + len; ++i)
+            sum += Math.abs(gains[i]);
+        if (sum > 1f) {
+            for (int i = row; i < row + len; ++i)
+                gains[i] /= sum;
+        }
+    }
+
+    @Nullable
+    private static float[] parseProperty(int srcChannels, int dstChannels) {
+        String name = PROPERTY_PREFIX + srcChannels + "to" + dstChannels;
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty())
+            return null;
+        String[] rows = value.split(";");
+        if (rows.length != dstChannels) {
+            logger.warn("Property " + name + " has " + rows.length + " rows instead of " + dstChannels + ", ignoring");
+            return null;
+        }
+        float[] gains = new float[dstChannels * srcChannels];
+        for (int d = 0; d < dstChannels; ++d) {
+            String[] items = rows[d].split(",");
+            if (items.length != srcChannels) {
+                logger.warn("Property " + name + " row " + d + " has " + items.length + " gains instead of " + srcChannels + ", ignoring");
+                return null;
+            }
+            for (int s = 0; s < srcChannels; ++s) {
+                try {
+                    gains[d * srcChannels + s] = Float.parseFloat(items[s].trim());
+                } catch (NumberFormatException e) {
+                    logger.warn("Property " + name + " has invalid gain " + items[s] + ", ignoring");
+                    return null;
+                }
+            }
+        }
+        return gains;
+    }
+}
@@ -0,0 +1,202 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import java.util.*;
+
+/**
+ * Line formats not supported by the device directly but convertible by the provider to/from a device format.
+ */
+final class DerivedFormats {
+    // bit depths of the derived integer formats, 24 bits packed in 3 bytes
+    private static final int[] INT_BITS = new int[]{16, 24, 32};
+    // formats at probed rates the device lacks, resampled by the provider
+    private static final boolean isResampling = Boolean.getBoolean("csjsoundResampling");
+    // formats with probed channel counts the device lacks, remapped/mixed by the provider
+    private static final boolean isChannelMixing = Boolean.getBoolean("csjsoundChannelMixing");
+
+    private DerivedFormats() {
+    }
+
+    /**
+     * @param deviceFormats formats reported for the device
+     * @param isSource      playback lines repack to the same or wider device samples, capture lines from the same or
+     *                      narrower ones, both without loss
+     * @return device format to open for each derived line format, in the order of the device formats
+     */
+    @Nonnull
+    static Map<AudioFormat, AudioFormat> create(@Nonnull AudioFormat[] deviceFormats, boolean isSource) {
+        Set<AudioFormat> supported = new HashSet<>(Arrays.asList(deviceFormats));
+        Map<AudioFormat, AudioFormat> deviceFormatByFormat = new LinkedHashMap<>();
+        for (List<AudioFormat> group : groupByRateAndChannels(deviceFormats).values()) {
+            AudioFormat first = group.get(0);
+            AudioFormat[] groupFormats = group.toArray(new AudioFormat[0]);
+            float rate = first.getSampleRate();
+            int channels = first.getChannels();
+            for (boolean isBigEndian : new boolean[]{false, true}) {
+                AudioFormat floatFormat = new DistinctableAudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, channels, 4 * channels, isBigEndian);
+                addDerived(floatFormat, groupFormats, supported, deviceFormatByFormat);
+            }
+            addRepacked(new DistinctableAudioFormat(AudioFormat.Encoding.PCM_SIGNED, rate, 8, channels, channels, false),
+                    groupFormats, supported, deviceFormatByFormat, isSource);
+            addRepacked(new DistinctableAudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, rate, 8, channels, channels, false),
+                    groupFormats, supported, deviceFormatByFormat, isSource);
+            for (int bits : INT_BITS) {
+                for (boolean isBigEndian : new boolean[]{false, true}) {
+                    AudioFormat intFormat = new DistinctableAudioFormat(AudioFormat.Encoding.PCM_SIGNED, rate, bits, channels, bits / 8 * channels, isBigEndian);
+                    addRepacked(intFormat, groupFormats, supported, deviceFormatByFormat, isSource);
+                }
+            }
+        }
+        if (isChannelMixing)
+            addChannelMixed(deviceFormats, deviceFormatByFormat);
+        if (isResampling)
+            addResampled(deviceFormats, deviceFormatByFormat);
+        return deviceFormatByFormat;
+    }
+
+    /**
+     * For each probed channel count missing in the device formats of given rate adds copies of the formats with the closest
+     * channels, preferably more channels (silence-fill) over fewer (downmix), mapped to the same device formats.
+     */
+    private static void addChannelMixed(@Nonnull AudioFormat[] deviceFormats, @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat) {
+        Map<Float, TreeMap<Integer, Map<AudioFormat, AudioFormat>>> byRate = new LinkedHashMap<>();
+        for (Map.Entry<AudioFormat, AudioFormat> entry : collectLineFormats(deviceFormats, deviceFormatByFormat).entrySet()) {
+            AudioFormat format = entry.getKey();
+            byRate.computeIfAbsent(format.getSampleRate(), k -> new TreeMap<>())
+                    .computeIfAbsent(format.getChannels(), k -> new LinkedHashMap<>())
+                    .put(format, entry.getValue());
+        }
+        Map<AudioFormat, AudioFormat> mixed = new LinkedHashMap<>();
+        for (Map.Entry<Float, TreeMap<Integer, Map<AudioFormat, AudioFormat>>> rateEntry : byRate.entrySet()) {
+            TreeMap<Integer, Map<AudioFormat, AudioFormat>> byChannels = rateEntry.getValue();
+            for (int channels : SimpleMixerProvider.getProbeChannels()) {
+                if (byChannels.containsKey(channels) || !SimpleMixerProvider.isProbedCombination(rateEntry.getKey().intValue(), channels))
+                    continue;
+                Integer deviceChannels = byChannels.ceilingKey(channels);
+                if (deviceChannels == null)
+                    deviceChannels = byChannels.floorKey(channels);
+                for (Map.Entry<AudioFormat, AudioFormat> entry : byChannels.get(deviceChannels).entrySet()) {
+                    AudioFormat format = entry.getKey();
+                    int sampleBytes = format.getFrameSize() / format.getChannels();
+                    mixed.put(new DistinctableAudioFormat(format.getEncoding(), format.getSampleRate(), format.getSampleSizeInBits(),
+                            channels, sampleBytes * channels, format.isBigEndian()), entry.getValue());
+                }
+            }
+        }
+        deviceFormatByFormat.putAll(mixed);
+    }
+
+    /**
+     * For each probed rate missing in the device formats of given channels adds copies of the formats at the device rate
+     * closest to it, mapped to the same device formats.
+     */
+    private static void addResampled(@Nonnull AudioFormat[] deviceFormats, @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat) {
+        Map<Integer, Map<Float, Map<AudioFormat, AudioFormat>>> byChannels = new TreeMap<>();
+        for (Map.Entry<AudioFormat, AudioFormat> entry : collectLineFormats(deviceFormats, deviceFormatByFormat).entrySet()) {
+            AudioFormat format = entry.getKey();
+            byChannels.computeIfAbsent(format.getChannels(), k -> new TreeMap<>())
+                    .computeIfAbsent(format.getSampleRate(), k -> new LinkedHashMap<>())
+                    .put(format, entry.getValue());
+        }
+        Map<AudioFormat, AudioFormat> resampled = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Map<Float, Map<AudioFormat, AudioFormat>>> channelsEntry : byChannels.entrySet()) {
+            Map<Float, Map<AudioFormat, AudioFormat>> byRate = channelsEntry.getValue();
+            for (int rate : SimpleMixerProvider.getProbeRates()) {
+                if (byRate.containsKey((float) rate) || !SimpleMixerProvider.isProbedCombination(rate, channelsEntry.getKey()))
+                    continue;
+                Float deviceRate = findClosestRate(rate, byRate.keySet());
+                if (deviceRate == null)
+                    continue;
+                for (Map.Entry<AudioFormat, AudioFormat> entry : byRate.get(deviceRate).entrySet()) {
+                    AudioFormat format = entry.getKey();
+                    resampled.put(new DistinctableAudioFormat(format.getEncoding(), rate, format.getSampleSizeInBits(),
+                            format.getChannels(), format.getFrameSize(), format.isBigEndian()), entry.getValue());
+                }
+            }
+        }
+        deviceFormatByFormat.putAll(resampled);
+    }
+
+    // convertible device formats and the derived formats so far, with their device formats
+    @Nonnull
+    private static Map<AudioFormat, AudioFormat> collectLineFormats(@Nonnull AudioFormat[] deviceFormats,
+                                                                    @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat) {
+        Map<AudioFormat, AudioFormat> lineFormats = new LinkedHashMap<>();
+        for (List<AudioFormat> group : groupByRateAndChannels(deviceFormats).values()) {
+            for (AudioFormat format : group)
+                lineFormats.put(format, format);
+        }
+        lineFormats.putAll(deviceFormatByFormat);
+        return lineFormats;
+    }
+
+    // the cheapest resampling, integer ratios and upsampling preferred
+    @Nullable
+    private static Float findClosestRate(int rate, @Nonnull Set<Float> deviceRates) {
+        Float best = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Float deviceRate : deviceRates) {
+            int cost = FormatNegotiator.getRateCost(rate, deviceRate, NegotiatedFormat.Strategy.LOWEST_CPU);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = deviceRate;
+            }
+        }
+        return best;
+    }
+
+    private static void addDerived(@Nonnull AudioFormat format, @Nonnull AudioFormat[] groupFormats, @Nonnull Set<AudioFormat> supported,
+                                   @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat) {
+        if (supported.contains(format) || deviceFormatByFormat.containsKey(format))
+            return;
+        NegotiatedFormat negotiated = FormatNegotiator.negotiate(format, groupFormats, NegotiatedFormat.Strategy.BIT_PERFECT);
+        if (negotiated != null)
+            deviceFormatByFormat.put(format, negotiated.getDeviceFormat());
+    }
+
+    // repacking only where lossless - same or wider device samples for playback, same or narrower for capture
+    private static void addRepacked(@Nonnull AudioFormat format, @Nonnull AudioFormat[] groupFormats, @Nonnull Set<AudioFormat> supported,
+                                    @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat, boolean isSource) {
+        if (supported.contains(format) || deviceFormatByFormat.containsKey(format))
+            return;
+        if (isSource) {
+            NegotiatedFormat negotiated = FormatNegotiator.negotiate(format, groupFormats, NegotiatedFormat.Strategy.BIT_PERFECT);
+            if (negotiated != null && negotiated.isBitPerfect())
+                deviceFormatByFormat.put(format, negotiated.getDeviceFormat());
+            return;
+        }
+        // the negotiator scores the line to device direction, capture samples go the other way
+        List<AudioFormat> narrower = new ArrayList<>();
+        for (AudioFormat deviceFormat : groupFormats) {
+            if (!AudioFormat.Encoding.PCM_FLOAT.equals(deviceFormat.getEncoding()) && deviceFormat.getSampleSizeInBits() <= format.getSampleSizeInBits())
+                narrower.add(deviceFormat);
+        }
+        NegotiatedFormat negotiated = FormatNegotiator.negotiate(format, narrower.toArray(new AudioFormat[0]), NegotiatedFormat.Strategy.BIT_PERFECT);
+        if (negotiated != null && isLosslessCapture(negotiated))
+            deviceFormatByFormat.put(format, negotiated.getDeviceFormat());
+    }
+
+    private static boolean isLosslessCapture(@Nonnull NegotiatedFormat negotiated) {
+        for (NegotiatedFormat.Conversion conversion : negotiated.getConversions()) {
+            // narrowing of the line samples = widening of the captured device samples
+            if (!conversion.isLossless() && conversion != NegotiatedFormat.Conversion.BIT_DEPTH_NARROWING)
+                return false;
+        }
+        return true;
+    }
+
+    // only fully specified formats the provider can convert
+    @Nonnull
+    private static Map<String, List<AudioFormat>> groupByRateAndChannels(@Nonnull AudioFormat[] deviceFormats) {
+        Map<String, List<AudioFormat>> groups = new LinkedHashMap<>();
+        for (AudioFormat format : deviceFormats) {
+            if (!SimpleMixerProvider.isFullySpecifiedFormat(format) || SampleCodec.create(format) == null)
+                continue;
+            String key = format.getSampleRate() + "/" + format.getChannels();
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(format);
+        }
+        return groups;
+    }
+}
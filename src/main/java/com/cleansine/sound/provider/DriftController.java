@@ -0,0 +1,105 @@
+package com.cleansine.sound.provider;
+
+/**
+ * Resampling ratio keeping the latency between two independently clocked devices constant.
+ * The clock ratio estimated from the device frame positions is corrected by a PI controller of the smoothed latency error.
+ * Not thread-safe.
+ */
+final class DriftController {
+    // max. relative correction of the ratio
+    private static final double MAX_CORRECTION = 0.005;
+    // proportional gain per second of latency error, time constant approx. 2s
+    private static final double KP = 0.5;
+    // integral gain per second^2 of latency error, slightly overdamped with KP
+    private static final double KI = 0.05;
+    // EMA coefficient of the latency measurements, the measurements jump by whole blocks
+    private static final double LATENCY_SMOOTHING = 0.05;
+    // the clock ratio is estimated from the frame positions over at least this period
+    private static final long CLOCK_WINDOW_NS = 2_000_000_000L;
+
+    private final double nominalRatio;
+    private final double outRate;
+    private final double targetLatencyFrames;
+
+    private double smoothedLatency = Double.NaN;
+    private double integral;
+    private long lastNanos;
+    // start of the clock estimation window
+    private long baseNanos;
+    private long baseInFrames = -1;
+    private long baseOutFrames;
+    private double clockRatio;
+    private double ratio;
+
+    /**
+     * @param nominalRatio output rate / input rate
+     * @param targetLatencyFrames latency to hold, in output frames
+     */
+    DriftController(double nominalRatio, float outRate, double targetLatencyFrames) {
+        this.nominalRatio = nominalRatio;
+        this.outRate = outRate;
+        this.targetLatencyFrames = targetLatencyFrames;
+        this.clockRatio = nominalRatio;
+        this.ratio = nominalRatio;
+    }
+
+    /**
+     * @param latencyFrames current latency in output frames
+     * @param inFrames     frame position of the input device
+     * @param outFrames    frame position of the output device
+     * @param nanos        time of the measurement
+     * @return new ratio output frames / input frames
+     */
+    double update(double latencyFrames, long inFrames, long outFrames, long nanos) {
+        if (Double.isNaN(smoothedLatency)) {
+            smoothedLatency = latencyFrames;
+            lastNanos = nanos;
+        } else
+            smoothedLatency += LATENCY_SMOOTHING * (latencyFrames - smoothedLatency);
+        updateClockRatio(inFrames, outFrames, nanos);
+
+        double dt = (nanos - lastNanos) / 1e9;
+        lastNanos = nanos;
+        double error = (smoothedLatency - targetLatencyFrames) / outRate;
+        double newIntegral = integral + error * dt;
+        // anti-windup - integrating only within the correction range
+        if (Math.abs(KI * newIntegral) <= MAX_CORRECTION)
+            integral = newIntegral;
+        double correction = KP * error + KI * integral;
+        correction = Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+        // too high latency = fewer output frames needed
+        ratio = clockRatio * (1.0 - correction);
+        return ratio;
+    }
+
+    private void updateClockRatio(long inFrames, long outFrames, long nanos) {
+        if (baseInFrames < 0) {
+            baseInFrames = inFrames;
+            baseOutFrames = outFrames;
+            baseNanos = nanos;
+            return;
+        }
+        long inDelta = inFrames - baseInFrames;
+        if (nanos - baseNanos < CLOCK_WINDOW_NS || inDelta <= 0)
+            return;
+        double measured = (double) (outFrames - baseOutFrames) / inDelta;
+        // ignoring nonsense, e.g. positions of a stalled device
+        if (Math.abs(measured / nominalRatio - 1.0) < MAX_CORRECTION)
+            clockRatio = measured;
+    }
+
+    double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @return estimated clock deviation of the output vs. input device in ppm
+     */
+    double getDriftPpm() {
+        return (clockRatio / nominalRatio - 1.0) * 1e6;
+    }
+
+    double getSmoothedLatencyFrames() {
+        return smoothedLatency;
+    }
+}
@@ -0,0 +1,251 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+
+/**
+ * Converts frames between two formats, block by block through preallocated work arrays.
+ * Integer to integer conversions use left-justified int samples and are lossless for equal or wider target depths,
+ * conversions involving float samples, a different rate or mixing of channels use float.
+ * Different channels are converted by a {@link ChannelMatrix} within the same block pass.
+ * With different rates the frames pass through a {@link Resampler}, the output frame count then differs from the input one.
+ * Not thread-safe, one instance per line.
+ */
+final class FormatConverter {
+    // src frames converted in one block until setPeriodFrames(), the work arrays stay in L1/L2 cache
+    static final int DEFAULT_BLOCK_FRAMES = 1024;
+    // blocks of whole periods, small periods grouped up to the min., huge periods split at the max.
+    private static final int MIN_BLOCK_FRAMES = 256;
+    private static final int MAX_BLOCK_FRAMES = 8192;
+
+    private final AudioFormat srcFormat;
+    private final AudioFormat dstFormat;
+    private final SampleCodec srcCodec;
+    private final SampleCodec dstCodec;
+    private final int srcFrameBytes;
+    private final int dstFrameBytes;
+    private final int srcChannels;
+    private final int dstChannels;
+    private final boolean useFloat;
+    @Nullable
+    private final ChannelMatrix matrix;
+    @Nullable
+    private final Resampler resampler;
+    // the work arrays below hold blockFrames, reallocated only by setPeriodFrames()
+    private int blockFrames;
+    @Nullable
+    private int[] intWork;
+    @Nullable
+    private float[] floatWork;
+    // output of the matrix, null without matrix
+    @Nullable
+    private int[] intMixedWork;
+    @Nullable
+    private float[] floatMixedWork;
+    @Nullable
+    private float[] resampledWork;
+
+    private FormatConverter(@Nonnull AudioFormat srcFormat, @Nonnull AudioFormat dstFormat, @Nonnull SampleCodec srcCodec, @Nonnull SampleCodec dstCodec,
+                            @Nullable ChannelMatrix matrix) {
+        this.srcFormat = srcFormat;
+        this.dstFormat = dstFormat;
+        this.srcCodec = srcCodec;
+        this.dstCodec = dstCodec;
+        this.srcFrameBytes = srcFormat.getFrameSize();
+        this.dstFrameBytes = dstFormat.getFrameSize();
+        this.srcChannels = srcFormat.getChannels();
+        this.dstChannels = dstFormat.getChannels();
+        this.matrix = matrix;
+        // resampling after the matrix, of the destination channels
+        this.resampler = srcFormat.getSampleRate() != dstFormat.getSampleRate()
+                ? new Resampler(dstChannels, (double) dstFormat.getSampleRate() / srcFormat.getSampleRate(), DEFAULT_BLOCK_FRAMES) : null;
+        this.useFloat = resampler != null || srcCodec instanceof SampleCodec.Float32 || dstCodec instanceof SampleCodec.Float32
+                || (matrix != null && !matrix.isSelection());
+        allocateWork(DEFAULT_BLOCK_FRAMES);
+    }
+
+    private void allocateWork(int frames) {
+        this.blockFrames = frames;
+        this.intWork = useFloat ? null : new int[frames * srcChannels];
+        this.floatWork = useFloat ? new float[frames * srcChannels] : null;
+        this.intMixedWork = !useFloat && matrix != null ? new int[frames * dstChannels] : null;
+        this.floatMixedWork = useFloat && matrix != null ? new float[frames * dstChannels] : null;
+        if (resampler != null) {
+            this.resampledWork = new float[frames * dstChannels];
+            resampler.ensureCapacity(frames);
+        } else {
+            this.resampledWork = null;
+        }
+    }
+
+    /**
+     * Converts in blocks of whole device periods from now on, called when the line is opened. Allocates the work arrays
+     * once, the conversion itself never allocates.
+     *
+     * @param periodFrames src frames of one device period
+     */
+    void setPeriodFrames(int periodFrames) {
+        if (periodFrames <= 0)
+            return;
+        int frames = Math.min(MAX_BLOCK_FRAMES, periodFrames * Math.max(1, MIN_BLOCK_FRAMES / periodFrames));
+        if (frames != blockFrames)
+            allocateWork(frames);
+    }
+
+    int getBlockFrames() {
+        return blockFrames;
+    }
+
+    /**
+     * @return converter or null if the conversion is not supported
+     */
+    @Nullable
+    static FormatConverter create(@Nonnull AudioFormat srcFormat, @Nonnull AudioFormat dstFormat) {
+        if (srcFormat.getSampleRate() <= 0 || dstFormat.getSampleRate() <= 0)
+            return null;
+        SampleCodec srcCodec = SampleCodec.create(srcFormat);
+        SampleCodec dstCodec = SampleCodec.create(dstFormat);
+        if (srcCodec == null || dstCodec == null)
+            return null;
+        ChannelMatrix matrix = ChannelMatrix.create(srcFormat.getChannels(), dstFormat.getChannels());
+        return new FormatConverter(srcFormat, dstFormat, srcCodec, dstCodec, matrix);
+    }
+
+    @Nonnull
+    AudioFormat getSrcFormat() {
+        return srcFormat;
+    }
+
+    @Nonnull
+    AudioFormat getDstFormat() {
+        return dstFormat;
+    }
+
+    int getSrcFrameBytes() {
+        return srcFrameBytes;
+    }
+
+    int getDstFrameBytes() {
+        return dstFrameBytes;
+    }
+
+    boolean isResampling() {
+        return resampler != null;
+    }
+
+    /**
+     * @return max. src frames to convert at once so that the output fits into dstCapacityFrames, at least 1
+     */
+    int getMaxSrcFrames(int dstCapacityFrames) {
+        if (resampler == null)
+            return dstCapacityFrames;
+        double srcPerDst = srcFormat.getSampleRate() / dstFormat.getSampleRate();
+        // the resampler may hold back up to one output frame
+        return Math.max(1, (int) ((dstCapacityFrames - 1) * srcPerDst));
+    }
+
+    /**
+     * Drops the frames buffered in the resampler.
+     */
+    void reset() {
+        if (resampler != null)
+            resampler.reset();
+    }
+
+    /**
+     * Converts frames from src to dst. When resampling, the output is limited to dstCapacityFrames, the input not yet
+     * converted stays buffered for the next call.
+     *
+     * @return bytes written to dst
+     */
+    int convert(@Nonnull byte[] src, int srcOff, int frames, @Nonnull byte[] dst, int dstOff, int dstCapacityFrames) {
+        if (resampler != null)
+            return resample(src, srcOff, frames, dst, dstOff, dstCapacityFrames);
+        int remaining = frames;
+        while (remaining > 0) {
+            int blockFrames = Math.min(remaining, this.blockFrames);
+            int srcSamples = blockFrames * srcChannels;
+            int dstSamples = blockFrames * dstChannels;
+            if (useFloat) {
+                srcCodec.decodeFloat(src, srcOff, floatWork, 0, srcSamples);
+                dstCodec.encodeFloat(mixFloat(blockFrames), 0, dst, dstOff, dstSamples);
+            } else {
+                srcCodec.decodeInt(src, srcOff, intWork, 0, srcSamples);
+                int[] samples = intWork;
+                if (matrix != null) {
+                    matrix.select(intWork, 0, intMixedWork, 0, blockFrames);
+                    samples = intMixedWork;
+                }
+                dstCodec.encodeInt(samples, 0, dst, dstOff, dstSamples);
+            }
+            srcOff += blockFrames * srcFrameBytes;
+            dstOff += blockFrames * dstFrameBytes;
+            remaining -= blockFrames;
+        }
+        return frames * dstFrameBytes;
+    }
+
+    /**
+     * @return max. frames produced by convertTail() now
+     */
+    int getMaxTailFrames() {
+        if (resampler == null)
+            return 0;
+        int lookahead = Math.min(resampler.getLookaheadFrames(), blockFrames);
+        return (int) Math.ceil((resampler.getBufferedFrames() + lookahead) * resampler.getRatio()) + 1;
+    }
+
+    /**
+     * Pushes the input held back as the resampler lookahead to the output, for the end of the stream.
+     *
+     * @return bytes written to dst
+     */
+    int convertTail(@Nonnull byte[] dst, int dstOff, int dstCapacityFrames) {
+        if (resampler == null)
+            return 0;
+        int lookahead = Math.min(resampler.getLookaheadFrames(), blockFrames);
+        // write() copies the zeros before read() reuses the array
+        Arrays.fill(resampledWork, 0, lookahead * dstChannels, 0f);
+        resampler.write(resampledWork, 0, lookahead);
+        int produced = readResampled(dst, dstOff, dstCapacityFrames);
+        resampler.reset();
+        return produced * dstFrameBytes;
+    }
+
+    private int resample(@Nonnull byte[] src, int srcOff, int frames, @Nonnull byte[] dst, int dstOff, int dstCapacityFrames) {
+        int produced = 0;
+        int remaining = frames;
+        while (remaining > 0) {
+            int blockFrames = Math.min(remaining, this.blockFrames);
+            srcCodec.decodeFloat(src, srcOff, floatWork, 0, blockFrames * srcChannels);
+            resampler.write(mixFloat(blockFrames), 0, blockFrames);
+            produced += readResampled(dst, dstOff + produced * dstFrameBytes, dstCapacityFrames - produced);
+            srcOff += blockFrames * srcFrameBytes;
+            remaining -= blockFrames;
+        }
+        return produced * dstFrameBytes;
+    }
+
+    private int readResampled(@Nonnull byte[] dst, int dstOff, int maxFrames) {
+        int produced = 0;
+        while (produced < maxFrames) {
+            int frames = resampler.read(resampledWork, 0, Math.min(maxFrames - produced, blockFrames));
+            if (frames == 0)
+                break;
+            dstCodec.encodeFloat(resampledWork, 0, dst, dstOff + produced * dstFrameBytes, frames * dstChannels);
+            produced += frames;
+        }
+        return produced;
+    }
+
+    // floatWork through the matrix
+    @Nonnull
+    private float[] mixFloat(int frames) {
+        if (matrix == null)
+            return floatWork;
+        matrix.mix(floatWork, 0, floatMixedWork, 0, frames);
+        return floatMixedWork;
+    }
+}
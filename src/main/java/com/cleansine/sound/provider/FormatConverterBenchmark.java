@@ -0,0 +1,81 @@
+package com.cleansine.sound.provider;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Throughput of FormatConverter conversions, run manually:
+ * <pre>
+ * java -cp csjsound-provider.jar:slf4j-api.jar com.cleansine.sound.provider.FormatConverterBenchmark
+ * </pre>
+ */
+final class FormatConverterBenchmark {
+    private static final int RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = 4096;
+    private static final int ROUNDS = 50_000;
+    private static final int RESAMPLING_ROUNDS = 2_000;
+
+    public static void main(String[] args) {
+        AudioFormat float32 = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, RATE, 32, CHANNELS, 4 * CHANNELS, RATE, false);
+        for (int bits : new int[]{16, 24, 32}) {
+            AudioFormat intFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, RATE, bits, CHANNELS, bits / 8 * CHANNELS, RATE, false);
+            run("float32LE -> int" + bits + "LE", float32, intFormat);
+            run("int" + bits + "LE -> float32LE", intFormat, float32);
+        }
+        AudioFormat int16BE = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, RATE, 16, CHANNELS, 2 * CHANNELS, RATE, true);
+        AudioFormat int32LE = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, RATE, 32, CHANNELS, 4 * CHANNELS, RATE, false);
+        run("int16BE -> int32LE", int16BE, int32LE);
+
+        // channel matrix
+        int[][] channelPairs = new int[][]{{6, 2}, {2, 6}, {1, 2}};
+        for (int[] pair : channelPairs) {
+            AudioFormat src = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, RATE, 16, pair[0], 2 * pair[0], RATE, false);
+            AudioFormat dst = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, RATE, 32, pair[1], 4 * pair[1], RATE, false);
+            run("int16 " + pair[0] + "ch -> int32 " + pair[1] + "ch", src, dst);
+        }
+
+        // resampling
+        int[][] ratePairs = new int[][]{{44_100, 48_000}, {48_000, 44_100}, {48_000, 96_000}, {96_000, 48_000}, {192_000, 44_100}};
+        for (int[] rates : ratePairs) {
+            AudioFormat src = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, rates[0], 16, CHANNELS, 2 * CHANNELS, rates[0], false);
+            AudioFormat dst = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, rates[1], 32, CHANNELS, 4 * CHANNELS, rates[1], false);
+            run("int16 " + rates[0] + " -> int32 " + rates[1], src, dst);
+        }
+    }
+
+    private static void run(String name, AudioFormat srcFormat, AudioFormat dstFormat) {
+        FormatConverter converter = FormatConverter.create(srcFormat, dstFormat);
+        if (converter == null) {
+            System.out.println(name + ": not supported");
+            return;
+        }
+        byte[] src = new byte[FRAMES * srcFormat.getFrameSize()];
+        // resampling may produce more frames
+        int dstFrames = (int) Math.ceil((double) FRAMES * dstFormat.getSampleRate() / srcFormat.getSampleRate()) + 2;
+        byte[] dst = new byte[dstFrames * dstFormat.getFrameSize()];
+        fill(src, srcFormat);
+        int rounds = converter.isResampling() ? RESAMPLING_ROUNDS : ROUNDS;
+        for (int i = 0; i < rounds / 2; ++i)
+            converter.convert(src, 0, FRAMES, dst, 0, dstFrames);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            converter.convert(src, 0, FRAMES, dst, 0, dstFrames);
+        long elapsed = System.nanoTime() - start;
+        double frames = (double) FRAMES * rounds;
+        // per second of the source audio
+        double framesPerSec = frames / (elapsed / 1e9);
+        float rate = srcFormat.getSampleRate();
+        System.out.printf("%-32s %8.1f Mframes/s, %6.0fx realtime at %.0f Hz/%d ch, %8.2f us CPU per second of audio%n",
+                name, framesPerSec / 1e6, framesPerSec / rate, rate, srcFormat.getChannels(), 1e6 * rate / framesPerSec);
+    }
+
+    private static void fill(byte[] src, AudioFormat format) {
+        int samples = src.length / (format.getFrameSize() / format.getChannels());
+        float[] sine = new float[samples];
+        for (int i = 0; i < samples; ++i)
+            sine[i] = (float) (0.5 * Math.sin(2 * Math.PI * 1000 * (i / format.getChannels()) / format.getSampleRate()));
+        SampleCodec codec = SampleCodec.create(format);
+        if (codec != null)
+            codec.encodeFloat(sine, 0, src, 0, samples);
+    }
+}
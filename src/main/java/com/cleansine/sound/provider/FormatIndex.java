@@ -0,0 +1,127 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import java.util.*;
+
+/**
+ * Hash index of formats keyed on (encoding, rate, sample bits, channels, endianness).
+ * Lookup gives the same result as a linear scan with requested.matches(indexedFormat), i.e. NOT_SPECIFIED rate,
+ * sample bits or channels of an indexed format match any requested value and endianness is ignored for requested
+ * formats up to 8 bits. Only the wildcard combinations present in the index are looked up, at most 16 hash lookups.
+ */
+final class FormatIndex<V> {
+    private static final int WILDCARD_RATE = 1;
+    private static final int WILDCARD_BITS = 2;
+    private static final int WILDCARD_CHANNELS = 4;
+    private static final int WILDCARD_COMBINATIONS = 8;
+
+    private final Map<Key, List<Entry<V>>> entriesByKey = new HashMap<>();
+    // wildcard combinations present in the indexed formats
+    private final boolean[] usedWildcards = new boolean[WILDCARD_COMBINATIONS];
+
+    void put(@Nonnull AudioFormat format, @Nonnull V value) {
+        Key key = new Key(format.getEncoding(), format.getSampleRate(), format.getSampleSizeInBits(), format.getChannels(), format.isBigEndian());
+        entriesByKey.computeIfAbsent(key, k -> new ArrayList<>(1)).add(new Entry<>(format, value));
+        usedWildcards[getWildcards(format)] = true;
+    }
+
+    boolean contains(@Nonnull AudioFormat requested) {
+        return find(requested) != null;
+    }
+
+    /**
+     * @return value of the first indexed format matched by the requested format, or null
+     */
+    @Nullable
+    V find(@Nonnull AudioFormat requested) {
+        boolean ignoreEndianness = requested.getSampleSizeInBits() <= 8;
+        for (int wildcards = 0; wildcards < WILDCARD_COMBINATIONS; ++wildcards) {
+            if (!usedWildcards[wildcards])
+                continue;
+            float rate = (wildcards & WILDCARD_RATE) != 0 ? AudioSystem.NOT_SPECIFIED : requested.getSampleRate();
+            int bits = (wildcards & WILDCARD_BITS) != 0 ? AudioSystem.NOT_SPECIFIED : requested.getSampleSizeInBits();
+            int channels = (wildcards & WILDCARD_CHANNELS) != 0 ? AudioSystem.NOT_SPECIFIED : requested.getChannels();
+            V value = findInBucket(requested, new Key(requested.getEncoding(), rate, bits, channels, requested.isBigEndian()));
+            if (value == null && ignoreEndianness)
+                value = findInBucket(requested, new Key(requested.getEncoding(), rate, bits, channels, !requested.isBigEndian()));
+            if (value != null)
+                return value;
+        }
+        return null;
+    }
+
+    @Nullable
+    private V findInBucket(@Nonnull AudioFormat requested, @Nonnull Key key) {
+        List<Entry<V>> entries = entriesByKey.get(key);
+        if (entries != null) {
+            // the key does not cover frame size/frame rate
+            for (Entry<V> entry : entries) {
+                if (requested.matches(entry.format))
+                    return entry.value;
+            }
+        }
+        return null;
+    }
+
+    private static int getWildcards(@Nonnull AudioFormat format) {
+        int wildcards = 0;
+        if (format.getSampleRate() == AudioSystem.NOT_SPECIFIED)
+            wildcards |= WILDCARD_RATE;
+        if (format.getSampleSizeInBits() == AudioSystem.NOT_SPECIFIED)
+            wildcards |= WILDCARD_BITS;
+        if (format.getChannels() == AudioSystem.NOT_SPECIFIED)
+            wildcards |= WILDCARD_CHANNELS;
+        return wildcards;
+    }
+
+    private static final class Entry<V> {
+        private final AudioFormat format;
+        private final V value;
+
+        private Entry(AudioFormat format, V value) {
+            this.format = format;
+            this.value = value;
+        }
+    }
+
+    private static final class Key {
+        private final AudioFormat.Encoding encoding;
+        private final int rateBits;
+        private final int bits;
+        private final int channels;
+        private final boolean bigEndian;
+
+        private Key(AudioFormat.Encoding encoding, float rate, int bits, int channels, boolean bigEndian) {
+            this.encoding = encoding;
+            this.rateBits = Float.floatToIntBits(rate);
+            this.bits = bits;
+            this.channels = channels;
+            this.bigEndian = bigEndian;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return rateBits == key.rateBits
+                    && bits == key.bits
+                    && channels == key.channels
+                    && bigEndian == key.bigEndian
+                    && Objects.equals(encoding, key.encoding);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = encoding != null ? encoding.hashCode() : 0;
+            result = 31 * result + rateBits;
+            result = 31 * result + bits;
+            result = 31 * result + channels;
+            result = 31 * result + (bigEndian ? 1 : 0);
+            return result;
+        }
+    }
+}
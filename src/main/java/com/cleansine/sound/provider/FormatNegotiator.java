@@ -0,0 +1,101 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import java.util.EnumSet;
+
+import static com.cleansine.sound.provider.NegotiatedFormat.Conversion;
+import static com.cleansine.sound.provider.NegotiatedFormat.Strategy;
+
+/**
+ * Scores the supported device formats against a desired format, the lowest cost wins.
+ * NOT_SPECIFIED fields of the desired format accept any value at no cost.
+ */
+final class FormatNegotiator {
+    // cost of a lossy conversion in the BIT_PERFECT strategy, above any combination of lossless ones
+    private static final int LOSSY_PENALTY = 100_000;
+
+    private FormatNegotiator() {
+    }
+
+    @Nullable
+    static NegotiatedFormat negotiate(@Nonnull AudioFormat desired, @Nonnull AudioFormat[] deviceFormats, @Nonnull Strategy strategy) {
+        NegotiatedFormat best = null;
+        // from the end to prefer the later formats in ties, as getLine() does
+        for (int i = deviceFormats.length - 1; i >= 0; --i) {
+            AudioFormat deviceFormat = deviceFormats[i];
+            if (!SimpleMixerProvider.isFullySpecifiedFormat(deviceFormat))
+                continue;
+            NegotiatedFormat candidate = score(desired, deviceFormat, strategy);
+            if (best == null || candidate.getCost() < best.getCost())
+                best = candidate;
+        }
+        return best;
+    }
+
+    @Nonnull
+    private static NegotiatedFormat score(@Nonnull AudioFormat desired, @Nonnull AudioFormat device, @Nonnull Strategy strategy) {
+        EnumSet<Conversion> conversions = EnumSet.noneOf(Conversion.class);
+        int cost = 0;
+
+        boolean isDesiredFloat = AudioFormat.Encoding.PCM_FLOAT.equals(desired.getEncoding());
+        boolean isDeviceFloat = AudioFormat.Encoding.PCM_FLOAT.equals(device.getEncoding());
+        if (isDesiredFloat != isDeviceFloat) {
+            conversions.add(Conversion.ENCODING);
+            cost += strategy == Strategy.BIT_PERFECT ? LOSSY_PENALTY : 20;
+        } else if (!isDesiredFloat && !desired.getEncoding().equals(device.getEncoding())) {
+            conversions.add(Conversion.SIGNEDNESS);
+            cost += 5;
+        }
+
+        int desiredBits = desired.getSampleSizeInBits();
+        int deviceBits = device.getSampleSizeInBits();
+        if (desiredBits != AudioSystem.NOT_SPECIFIED && desiredBits != deviceBits) {
+            if (deviceBits > desiredBits) {
+                conversions.add(Conversion.BIT_DEPTH_WIDENING);
+                // preferring the nearest wider depth
+                cost += 10 + (deviceBits - desiredBits) / 8;
+            } else {
+                conversions.add(Conversion.BIT_DEPTH_NARROWING);
+                cost += (strategy == Strategy.BIT_PERFECT ? LOSSY_PENALTY : 10) + (desiredBits - deviceBits) / 8;
+            }
+        }
+        if (desiredBits != AudioSystem.NOT_SPECIFIED && desiredBits > 8 && deviceBits > 8 && desired.isBigEndian() != device.isBigEndian()) {
+            conversions.add(Conversion.ENDIANNESS);
+            cost += 5;
+        }
+
+        float desiredRate = desired.getSampleRate();
+        float deviceRate = device.getSampleRate();
+        if (desiredRate != AudioSystem.NOT_SPECIFIED && desiredRate != deviceRate) {
+            conversions.add(Conversion.SAMPLE_RATE);
+            cost += getRateCost(desiredRate, deviceRate, strategy);
+        }
+
+        int desiredChannels = desired.getChannels();
+        int deviceChannels = device.getChannels();
+        if (desiredChannels != AudioSystem.NOT_SPECIFIED && desiredChannels != deviceChannels) {
+            if (deviceChannels > desiredChannels) {
+                conversions.add(Conversion.CHANNELS_UPMIX);
+                cost += 50 + (deviceChannels - desiredChannels);
+            } else {
+                conversions.add(Conversion.CHANNELS_DOWNMIX);
+                cost += (strategy == Strategy.BIT_PERFECT ? LOSSY_PENALTY : 100) + (desiredChannels - deviceChannels);
+            }
+        }
+        return new NegotiatedFormat(desired, device, conversions, cost);
+    }
+
+    static int getRateCost(float desiredRate, float deviceRate, @Nonnull Strategy strategy) {
+        double ratio = deviceRate > desiredRate ? deviceRate / desiredRate : desiredRate / deviceRate;
+        boolean isIntegerRatio = Math.abs(ratio - Math.rint(ratio)) < 1e-6;
+        // resampling is the most expensive conversion, integer ratios need fewer filter phases
+        int cost = 1000 + (isIntegerRatio ? 0 : 500) + (int) (100 * Math.log(ratio) / Math.log(2));
+        if (deviceRate < desiredRate)
+            // downsampling loses the upper band
+            cost += 200;
+        return strategy == Strategy.BIT_PERFECT ? LOSSY_PENALTY + cost : cost;
+    }
+}
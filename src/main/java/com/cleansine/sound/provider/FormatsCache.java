@@ -0,0 +1,232 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Persistent cache of device formats reported by nGetFormats, stored in the file given by property csjsoundFormatsCache.
+ * Entries are keyed by deviceID and direction, an entry is used only if the device identity (name/vendor/description/version)
+ * and the probing configuration (rates, channels, limits) have not changed since it was stored.
+ * Without the property the cache is disabled and every device is probed.
+ */
+final class FormatsCache {
+    private static final Logger logger = LoggerFactory.getLogger(FormatsCache.class);
+    private static final String CACHE_FILE_PROPERTY = "csjsoundFormatsCache";
+    // bump when the stored format changes
+    private static final String VERSION = "1";
+    private static final String VERSION_KEY = "version";
+    private static final String IDENTITY_SUFFIX = ".identity";
+    private static final String FORMATS_SUFFIX = ".formats";
+    private static final String FORMATS_SEPARATOR = ";";
+    private static final String FIELDS_SEPARATOR = ":";
+
+    @Nullable
+    private static final File cacheFile = initCacheFile();
+    // lazily loaded, all access synchronized on FormatsCache.class
+    @Nullable
+    private static Properties entries;
+    // entries changed since the last store
+    private static boolean isDirty;
+    // > 0 while probeAllFormats() runs, the file is stored once at its end
+    private static int batchDepth;
+
+    private FormatsCache() {
+    }
+
+    @Nullable
+    private static File initCacheFile() {
+        String path = System.getProperty(CACHE_FILE_PROPERTY);
+        if (path == null || path.isEmpty())
+            return null;
+        logger.info("Using device formats cache file " + path);
+        return new File(path);
+    }
+
+    static boolean isEnabled() {
+        return cacheFile != null;
+    }
+
+    /**
+     * @return cached formats or null if the cache is disabled, has no entry for the device or the entry is stale
+     */
+    @Nullable
+    static synchronized List<AudioFormat> getFormats(@Nonnull SimpleMixerInfo info, boolean isSource, @Nonnull String probeConfig) {
+        if (cacheFile == null)
+            return null;
+        Properties props = getEntries();
+        String prefix = getKeyPrefix(info, isSource);
+        String storedIdentity = props.getProperty(prefix + IDENTITY_SUFFIX);
+        String storedFormats = props.getProperty(prefix + FORMATS_SUFFIX);
+        if (storedIdentity == null || storedFormats == null)
+            return null;
+        if (!storedIdentity.equals(getIdentity(info, probeConfig))) {
+            logger.debug("Cached formats of device " + info.getDeviceID() + " are stale, device identity changed");
+            return null;
+        }
+        try {
+            return parseFormats(storedFormats);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Cannot parse cached formats of device " + info.getDeviceID() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static synchronized void putFormats(@Nonnull SimpleMixerInfo info, boolean isSource, @Nonnull String probeConfig,
+                                        @Nonnull Collection<AudioFormat> formats) {
+        if (cacheFile == null)
+            return;
+        if (formats.isEmpty())
+            // the device may be just busy, probing again next time
+            return;
+        Properties props = getEntries();
+        String prefix = getKeyPrefix(info, isSource);
+        String identity = getIdentity(info, probeConfig);
+        String formatsStr = formatsToString(formats);
+        if (identity.equals(props.getProperty(prefix + IDENTITY_SUFFIX)) && formatsStr.equals(props.getProperty(prefix + FORMATS_SUFFIX)))
+            // unchanged, e.g. probed again after a busy device
+            return;
+        props.setProperty(prefix + IDENTITY_SUFFIX, identity);
+        props.setProperty(prefix + FORMATS_SUFFIX, formatsStr);
+        isDirty = true;
+        if (batchDepth == 0)
+            flush();
+    }
+
+    /**
+     * Defers storing of the file until the matching endBatch(), e.g. while all devices are probed.
+     */
+    static synchronized void beginBatch() {
+        ++batchDepth;
+    }
+
+    /**
+     * Stores the entries put since beginBatch(), if any.
+     */
+    static synchronized void endBatch() {
+        if (batchDepth > 0 && --batchDepth == 0)
+            flush();
+    }
+
+    private static void flush() {
+        if (!isDirty || entries == null)
+            return;
+        store(entries);
+        isDirty = false;
+    }
+
+    @Nonnull
+    private static Properties getEntries() {
+        if (entries == null) {
+            entries = new Properties();
+            if (cacheFile != null && cacheFile.isFile()) {
+                try (Reader reader = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) {
+                    entries.load(reader);
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.warn("Cannot read formats cache file " + cacheFile + ", ignoring: " + e);
+                    entries.clear();
+                }
+                if (!VERSION.equals(entries.getProperty(VERSION_KEY))) {
+                    logger.debug("Formats cache file " + cacheFile + " has incompatible version, ignoring");
+                    entries.clear();
+                }
+            }
+            entries.setProperty(VERSION_KEY, VERSION);
+        }
+        return entries;
+    }
+
+    private static void store(@Nonnull Properties props) {
+        if (cacheFile == null)
+            return;
+        File dir = cacheFile.getAbsoluteFile().getParentFile();
+        File tmpFile = null;
+        try {
+            // writing to a temporary file first so that a concurrently starting JVM never reads a half-written cache
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                props.store(writer, "csjsound device formats cache");
+            }
+            try {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot write formats cache file " + cacheFile + ": " + e);
+            if (tmpFile != null && !tmpFile.delete())
+                logger.debug("Cannot delete temporary file " + tmpFile);
+        }
+    }
+
+    @Nonnull
+    private static String getKeyPrefix(@Nonnull SimpleMixerInfo info, boolean isSource) {
+        return (isSource ? "source." : "target.") + info.getDeviceID();
+    }
+
+    @Nonnull
+    private static String getIdentity(@Nonnull SimpleMixerInfo info, @Nonnull String probeConfig) {
+        return info.getName() + "|" + info.getVendor() + "|" + info.getDescription() + "|" + info.getVersion() + "|" + probeConfig;
+    }
+
+    @Nonnull
+    private static String formatsToString(@Nonnull Collection<AudioFormat> formats) {
+        StringBuilder sb = new StringBuilder();
+        for (AudioFormat format : formats) {
+            if (sb.length() > 0)
+                sb.append(FORMATS_SEPARATOR);
+            sb.append(format.getEncoding()).append(FIELDS_SEPARATOR)
+                    .append((int) format.getSampleRate()).append(FIELDS_SEPARATOR)
+                    .append(format.getSampleSizeInBits()).append(FIELDS_SEPARATOR)
+                    .append(format.getChannels()).append(FIELDS_SEPARATOR)
+                    .append(format.getFrameSize()).append(FIELDS_SEPARATOR)
+                    .append(format.isBigEndian() ? 1 : 0);
+        }
+        return sb.toString();
+    }
+
+    @Nonnull
+    private static List<AudioFormat> parseFormats(@Nonnull String str) throws IllegalArgumentException {
+        List<AudioFormat> formats = new ArrayList<>();
+        if (str.isEmpty())
+            return formats;
+        for (String item : str.split(FORMATS_SEPARATOR)) {
+            String[] fields = item.split(FIELDS_SEPARATOR);
+            if (fields.length != 6)
+                throw new IllegalArgumentException("Invalid format item " + item);
+            // NumberFormatException is an IllegalArgumentException
+            formats.add(new DistinctableAudioFormat(
+                    parseEncoding(fields[0]),
+                    (float) Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]),
+                    "1".equals(fields[5])
+            ));
+        }
+        return formats;
+    }
+
+    @Nonnull
+    private static AudioFormat.Encoding parseEncoding(@Nonnull String name) {
+        if (AudioFormat.Encoding.PCM_SIGNED.toString().equals(name))
+            return AudioFormat.Encoding.PCM_SIGNED;
+        if (AudioFormat.Encoding.PCM_UNSIGNED.toString().equals(name))
+            return AudioFormat.Encoding.PCM_UNSIGNED;
+        if (AudioFormat.Encoding.PCM_FLOAT.toString().equals(name))
+            return AudioFormat.Encoding.PCM_FLOAT;
+        throw new IllegalArgumentException("Unsupported encoding " + name);
+    }
+}
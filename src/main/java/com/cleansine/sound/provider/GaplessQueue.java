@@ -0,0 +1,270 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gapless playback of a sequence of AudioInputStreams/buffers through one open SimpleSourceDataLine, fed by own thread.
+ * At a format change the line keeps its native stream if the device format stays (see
+ * {@link SimpleSourceDataLine#changeFormat(AudioFormat)}), otherwise it is drained and reopened. The conversion of the
+ * next item format is prepared while the current item plays.
+ * <p>
+ * The {@link BoundaryListener} gets the exact line frame position of the first frame of each item.
+ */
+public final class GaplessQueue {
+    private static final Logger logger = LoggerFactory.getLogger(GaplessQueue.class);
+    // waiting for the next item/free line buffer is re-checked in this period
+    private static final long WAIT_MS = 10;
+
+    public interface BoundaryListener {
+        /**
+         * Called by the feeder thread when the first frame of the item is written to the line.
+         *
+         * @param itemIndex     index returned by enqueue()
+         * @param framePosition line frame position (see {@link SimpleSourceDataLine#getLongFramePosition()}) at which
+         *                      the first frame of the item plays
+         * @param isReopened    true if the line was reopened for the item format, the frame position restarted at 0
+         */
+        void onBoundary(long itemIndex, @Nonnull AudioFormat format, long framePosition, boolean isReopened);
+    }
+
+    private final SimpleSourceDataLine line;
+    private final LinkedBlockingQueue<Item> items = new LinkedBlockingQueue<>();
+    private final AtomicLong nextIndex = new AtomicLong();
+    private final int bufferMS;
+    @Nullable
+    private volatile BoundaryListener listener;
+    private volatile boolean isRunning;
+    @Nullable
+    private Thread thread;
+    // the feeder state below is accessed only by the feeder thread, handed over by start()/join()
+    @Nullable
+    private Item current;
+    private byte[] chunk = new byte[0];
+    private int chunkOffset;
+    private int chunkLen;
+    // conversion of the next item format, resolved ahead
+    @Nullable
+    private SimpleDataLine.DeviceConfig prepared;
+    // format of the last preparation, also if failed
+    @Nullable
+    private AudioFormat preparedFor;
+
+    /**
+     * @param line open line
+     */
+    public GaplessQueue(@Nonnull SimpleSourceDataLine line) {
+        if (!line.isOpen())
+            throw new IllegalStateException("Line must be open");
+        this.line = line;
+        AudioFormat format = line.getFormat();
+        // writing by a fraction of the line buffer keeps the device buffer filled
+        this.bufferMS = Math.max(1, (int) (line.getBufferSize() / format.getFrameSize() * 1000L / (long) format.getFrameRate() / 4));
+    }
+
+    public void setBoundaryListener(@Nullable BoundaryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param stream read until its end, closed by the queue
+     * @return index of the item
+     */
+    public long enqueue(@Nonnull AudioInputStream stream) {
+        long index = nextIndex.getAndIncrement();
+        items.add(new Item(index, stream));
+        return index;
+    }
+
+    /**
+     * @return index of the item
+     */
+    public long enqueue(@Nonnull AudioFormat format, @Nonnull byte[] data, int offset, int len) {
+        return enqueue(new AudioInputStream(new ByteArrayInputStream(data, offset, len), format, len / format.getFrameSize()));
+    }
+
+    /**
+     * @return items waiting, without the item playing
+     */
+    public int getQueuedItems() {
+        return items.size();
+    }
+
+    /**
+     * Removes the waiting items, the item playing continues.
+     */
+    public void clear() {
+        Item item;
+        while ((item = items.poll()) != null)
+            item.close();
+    }
+
+    /**
+     * Starts the line and the feeder thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        isRunning = true;
+        Thread t = new Thread(this::run, "csjsound gapless feeder");
+        t.setDaemon(true);
+        thread = t;
+        line.start();
+        t.start();
+    }
+
+    /**
+     * Stops the feeder thread and the line, the line stays open. start() continues with the rest of the item playing.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null)
+            return;
+        isRunning = false;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        line.stop();
+    }
+
+    private void run() {
+        while (isRunning) {
+            if (chunkLen > 0) {
+                writeChunk();
+                continue;
+            }
+            if (current == null) {
+                Item next;
+                try {
+                    next = items.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while waiting for the next item");
+                    break;
+                }
+                if (next != null && beginItem(next))
+                    current = next;
+                continue;
+            }
+            readChunk();
+            if (chunkLen > 0)
+                prepareNext();
+        }
+    }
+
+    /**
+     * @return false if the line cannot play the item format, the item is skipped
+     */
+    private boolean beginItem(@Nonnull Item item) {
+        AudioFormat format = item.stream.getFormat();
+        boolean isReopened = false;
+        if (!isLineFormat(format)) {
+            try {
+                SimpleDataLine.DeviceConfig config = prepared != null && prepared.format == format ? prepared : line.resolveDeviceConfig(format);
+                isReopened = !line.changeFormat(config);
+            } catch (LineUnavailableException | RuntimeException e) {
+                logger.error("Skipping item " + item.index + ", cannot play format " + format, e);
+                item.close();
+                return false;
+            } finally {
+                prepared = null;
+                preparedFor = null;
+            }
+        }
+        int chunkBytes = (int) (format.getFrameRate() * bufferMS / 1000) * format.getFrameSize();
+        if (chunk.length != chunkBytes)
+            chunk = new byte[Math.max(format.getFrameSize(), chunkBytes)];
+        BoundaryListener l = listener;
+        if (l != null) {
+            try {
+                l.onBoundary(item.index, format, line.getWrittenFrames(), isReopened);
+            } catch (RuntimeException e) {
+                logger.error("Boundary listener failed", e);
+            }
+        }
+        return true;
+    }
+
+    private boolean isLineFormat(@Nonnull AudioFormat format) {
+        AudioFormat lineFormat = line.getFormat();
+        return format.matches(lineFormat) && format.getFrameSize() == lineFormat.getFrameSize();
+    }
+
+    private void readChunk() {
+        Item item = current;
+        int read;
+        try {
+            read = item.stream.read(chunk, 0, chunk.length);
+        } catch (IOException e) {
+            logger.error("Reading item " + item.index + " failed, skipping its rest", e);
+            read = -1;
+        }
+        if (read <= 0) {
+            // end of the item, the next item follows without a gap
+            item.close();
+            current = null;
+            return;
+        }
+        chunkOffset = 0;
+        chunkLen = read;
+    }
+
+    private void writeChunk() {
+        int written = line.write(chunk, chunkOffset, chunkLen, WAIT_MS, TimeUnit.MILLISECONDS);
+        chunkOffset += written;
+        chunkLen -= written;
+        if (written == 0 && !line.running)
+            // the write does not wait in a stopped line
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WAIT_MS));
+    }
+
+    // resolving the conversion of the next format while the current item plays
+    private void prepareNext() {
+        Item next = items.peek();
+        if (next == null)
+            return;
+        AudioFormat format = next.stream.getFormat();
+        if (format == preparedFor || isLineFormat(format))
+            return;
+        preparedFor = format;
+        prepared = null;
+        try {
+            prepared = line.resolveDeviceConfig(format);
+        } catch (LineUnavailableException | RuntimeException e) {
+            // reported when the item begins
+            logger.debug("Cannot prepare format " + format + ": " + e);
+        }
+    }
+
+    private static final class Item {
+        private final long index;
+        private final AudioInputStream stream;
+
+        Item(long index, @Nonnull AudioInputStream stream) {
+            this.index = index;
+            this.stream = stream;
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                logger.warn("Closing item " + index + " failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies frames from an open TargetDataLine to an open SourceDataLine of another device, in own thread.
+ * The two device clocks drift apart, the frames are resampled with a slowly varying ratio (see {@link DriftController})
+ * which keeps the latency - frames captured but not read + frames in the resampler + frames queued for playback - constant.
+ * Both lines must have the same channels, any PCM formats convertible by the provider, any rates.
+ */
+public final class LineBridge {
+    private static final Logger logger = LoggerFactory.getLogger(LineBridge.class);
+    private static final long LOG_INTERVAL_NS = 1_000_000_000L;
+    // a stopped input is re-checked in this period
+    private static final long WAIT_MS = 10;
+
+    private final TargetDataLine input;
+    private final SourceDataLine output;
+    private final SampleCodec inCodec;
+    private final SampleCodec outCodec;
+    private final int channels;
+    private final int inFrameBytes;
+    private final int outFrameBytes;
+    private final double nominalRatio;
+    private final int blockFrames;
+    private final int latencyFrames;
+    private final Resampler resampler;
+    private final DriftController controller;
+
+    @Nullable
+    private volatile Thread thread;
+    private volatile boolean isRunning;
+    private volatile double ratio;
+    private volatile double latency;
+    private volatile double driftPpm;
+
+    /**
+     * @param latencyMS latency to hold, must fit into the output buffer
+     */
+    public LineBridge(@Nonnull TargetDataLine input, @Nonnull SourceDataLine output, int latencyMS) {
+        AudioFormat inFormat = input.getFormat();
+        AudioFormat outFormat = output.getFormat();
+        if (!input.isOpen() || !output.isOpen())
+            throw new IllegalStateException("Both lines must be open");
+        if (inFormat.getChannels() != outFormat.getChannels())
+            throw new IllegalArgumentException("Different channels of " + inFormat + " and " + outFormat);
+        SampleCodec inCodec = SampleCodec.create(inFormat);
+        SampleCodec outCodec = SampleCodec.create(outFormat);
+        if (inCodec == null || outCodec == null)
+            throw new IllegalArgumentException("Unsupported format " + (inCodec == null ? inFormat : outFormat));
+        this.input = input;
+        this.output = output;
+        this.inCodec = inCodec;
+        this.outCodec = outCodec;
+        this.channels = inFormat.getChannels();
+        this.inFrameBytes = inFormat.getFrameSize();
+        this.outFrameBytes = outFormat.getFrameSize();
+        this.nominalRatio = (double) outFormat.getSampleRate() / inFormat.getSampleRate();
+        this.latencyFrames = (int) ((long) latencyMS * (long) outFormat.getSampleRate() / 1000);
+        // latency measured and corrected a few times per latency period
+        this.blockFrames = Math.max(32, (int) (latencyFrames / nominalRatio / 8));
+        int outBufferFrames = output.getBufferSize() / outFrameBytes;
+        if (latencyFrames + 2 * blockFrames * nominalRatio > outBufferFrames)
+            throw new IllegalArgumentException("Latency " + latencyMS + "ms does not fit output buffer of " + outBufferFrames + " frames");
+        this.resampler = new Resampler(channels, nominalRatio, blockFrames);
+        this.controller = new DriftController(nominalRatio, outFormat.getSampleRate(), latencyFrames);
+        this.ratio = nominalRatio;
+    }
+
+    /**
+     * Prefills the output with silence of the latency, starts both lines and the copying thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        byte[] silence = new byte[latencyFrames * outFrameBytes];
+        outCodec.encodeFloat(new float[latencyFrames * channels], 0, silence, 0, latencyFrames * channels);
+        output.write(silence, 0, silence.length);
+        isRunning = true;
+        Thread t = new Thread(this::run, "csjsound bridge");
+        t.setDaemon(true);
+        thread = t;
+        output.start();
+        input.start();
+        t.start();
+    }
+
+    /**
+     * Stops the copying thread and both lines, the lines stay open.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null)
+            return;
+        isRunning = false;
+        try {
+            // a read takes at most one block
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        input.stop();
+        output.stop();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return current resampling ratio output frames / input frames
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @return smoothed latency in output frames
+     */
+    public double getLatencyFrames() {
+        return latency;
+    }
+
+    /**
+     * @return estimated clock deviation of the output vs. input device in ppm
+     */
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    private void run() {
+        byte[] inBytes = new byte[blockFrames * inFrameBytes];
+        float[] inSamples = new float[blockFrames * channels];
+        // the ratio may grow within DriftController limits
+        int maxOutFrames = (int) Math.ceil(blockFrames * nominalRatio * 1.01) + 2;
+        float[] outSamples = new float[maxOutFrames * channels];
+        byte[] outBytes = new byte[maxOutFrames * outFrameBytes];
+        long lastLogNanos = System.nanoTime();
+        while (isRunning) {
+            int read = input.read(inBytes, 0, inBytes.length);
+            int frames = read / inFrameBytes;
+            if (frames <= 0) {
+                if (!input.isOpen()) {
+                    logger.warn("Bridge input closed, stopping the bridge");
+                    isRunning = false;
+                    break;
+                }
+                // the read does not wait in an input stopped meanwhile
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WAIT_MS));
+                continue;
+            }
+            inCodec.decodeFloat(inBytes, 0, inSamples, 0, frames * channels);
+            resampler.write(inSamples, 0, frames);
+            int produced = resampler.read(outSamples, 0, maxOutFrames);
+            outCodec.encodeFloat(outSamples, 0, outBytes, 0, produced * channels);
+            output.write(outBytes, 0, produced * outFrameBytes);
+
+            long nanos = System.nanoTime();
+            resampler.setRatio(controller.update(measureLatency(), input.getLongFramePosition(), output.getLongFramePosition(), nanos));
+            ratio = controller.getRatio();
+            latency = controller.getSmoothedLatencyFrames();
+            driftPpm = controller.getDriftPpm();
+            if (nanos - lastLogNanos >= LOG_INTERVAL_NS) {
+                lastLogNanos = nanos;
+                if (logger.isDebugEnabled())
+                    logger.debug("Bridge latency " + Math.round(latency) + " frames (target " + latencyFrames + "), ratio " + ratio + ", drift " + Math.round(driftPpm) + "ppm");
+            }
+        }
+    }
+
+    // in output frames
+    private double measureLatency() {
+        double captured = (double) input.available() / inFrameBytes + resampler.getBufferedFrames();
+        double queued = (double) (output.getBufferSize() - output.available()) / outFrameBytes;
+        return captured * nominalRatio + queued;
+    }
+}
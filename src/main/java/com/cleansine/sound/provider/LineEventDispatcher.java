@@ -0,0 +1,55 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.sound.sampled.LineEvent;
+import javax.sound.sampled.LineListener;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers LineEvents of all lines to their listeners in one daemon thread. Posting only enqueues the event lock-free,
+ * a slow listener never blocks the writing/reading/clip threads, the events of one line keep their order.
+ */
+final class LineEventDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(LineEventDispatcher.class);
+    private static final Queue<LineEvent> events = new ConcurrentLinkedQueue<>();
+    // started with the first event
+    private static final Thread thread;
+
+    static {
+        thread = new Thread(LineEventDispatcher::run, "csjsound line events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private LineEventDispatcher() {
+    }
+
+    static void post(@Nonnull LineEvent event) {
+        events.offer(event);
+        LockSupport.unpark(thread);
+    }
+
+    private static void run() {
+        while (true) {
+            LineEvent event = events.poll();
+            if (event == null) {
+                LockSupport.park(LineEventDispatcher.class);
+                continue;
+            }
+            // listeners at the time of delivery
+            for (LineListener listener : ((SimpleLine) event.getLine()).getLineListeners()) {
+                try {
+                    listener.update(event);
+                } catch (Throwable e) {
+                    // also Errors, the single dispatcher thread must survive any listener
+                    logger.error("Line listener failed on " + event, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Native handles of recently closed lines of one device, kept open (stopped and flushed) for a grace period.
+ * A matching open() takes the handle instead of calling nOpen, skipping the negotiation of the hw params, e.g. when
+ * a player closes and reopens the line at every track change. Expired handles are closed by a shared daemon thread.
+ * <p>
+ * A parked handle keeps the device busy, a non-matching open() closes the parked handles of the direction first.
+ */
+final class NativeHandlePool {
+    private static final Logger logger = LoggerFactory.getLogger(NativeHandlePool.class);
+    // 0 = handles closed immediately
+    private static final long GRACE_MS = Long.getLong("csjsoundHandleGraceMs", 0);
+    @Nullable
+    private static ScheduledThreadPoolExecutor expiryExecutor;
+
+    private final String deviceID;
+    // guarded by this
+    private final List<Parked> parked = new ArrayList<>();
+
+    NativeHandlePool(@Nonnull String deviceID) {
+        this.deviceID = deviceID;
+    }
+
+    static boolean isEnabled() {
+        return GRACE_MS > 0;
+    }
+
+    /**
+     * @return key of the handle parameters, bufferBytes and periodBytes as requested from nOpen
+     */
+    @Nonnull
+    static String createKey(boolean isSource, @Nonnull AudioFormat hwFormat, int bufferBytes, int periodBytes) {
+        return (isSource ? "source/" : "target/") + hwFormat.getEncoding() + "/" + (int) hwFormat.getSampleRate() + "/"
+                + hwFormat.getSampleSizeInBits() + "/" + hwFormat.getFrameSize() + "/" + hwFormat.getChannels() + "/"
+                + hwFormat.isBigEndian() + "/" + bufferBytes + "/" + periodBytes;
+    }
+
+    /**
+     * @return parked handle of the key or 0 if none, the other parked handles of the direction are closed
+     */
+    long take(@Nonnull String key, boolean isSource) {
+        Parked found = null;
+        List<Parked> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Parked> iter = parked.iterator(); iter.hasNext(); ) {
+                Parked p = iter.next();
+                if (p.isSource != isSource)
+                    continue;
+                iter.remove();
+                if (found == null && p.key.equals(key))
+                    found = p;
+                else
+                    // would keep the device busy for the new handle
+                    toClose.add(p);
+            }
+        }
+        for (Parked p : toClose)
+            p.close();
+        if (found == null)
+            return 0;
+        found.expiry.cancel(false);
+        logger.debug("Reusing native handle of " + deviceID + " " + key);
+        return found.nativePtr;
+    }
+
+    /**
+     * @param nativePtr stopped and flushed handle
+     * @return false if not parked, the caller must close the handle
+     */
+    boolean park(@Nonnull String key, boolean isSource, long nativePtr) {
+        if (!isEnabled() || nativePtr <= 0)
+            return false;
+        Parked p = new Parked(key, isSource, nativePtr);
+        synchronized (this) {
+            p.expiry = getExpiryExecutor().schedule(() -> expire(p), GRACE_MS, TimeUnit.MILLISECONDS);
+            parked.add(p);
+        }
+        logger.debug("Parked native handle of " + deviceID + " " + key + " for " + GRACE_MS + "ms");
+        return true;
+    }
+
+    /**
+     * Closes all parked handles.
+     */
+    void closeAll() {
+        List<Parked> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<>(parked);
+            parked.clear();
+        }
+        for (Parked p : toClose) {
+            p.expiry.cancel(false);
+            p.close();
+        }
+    }
+
+    private void expire(@Nonnull Parked p) {
+        boolean isRemoved;
+        synchronized (this) {
+            isRemoved = parked.remove(p);
+        }
+        // taken meanwhile otherwise
+        if (isRemoved)
+            p.close();
+    }
+
+    @Nonnull
+    private static synchronized ScheduledThreadPoolExecutor getExpiryExecutor() {
+        if (expiryExecutor == null) {
+            expiryExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "csjsound handle pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            expiryExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return expiryExecutor;
+    }
+
+    private final class Parked {
+        private final String key;
+        private final boolean isSource;
+        private final long nativePtr;
+        // set before publishing in the list
+        private ScheduledFuture<?> expiry;
+
+        Parked(@Nonnull String key, boolean isSource, long nativePtr) {
+            this.key = key;
+            this.isSource = isSource;
+            this.nativePtr = nativePtr;
+        }
+
+        void close() {
+            logger.debug("Closing parked native handle of " + deviceID + " " + key);
+            SimpleMixer.nClose(nativePtr, isSource);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.sound.sampled.AudioFormat;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Result of {@link SimpleMixer#negotiateFormat(AudioFormat, boolean, Strategy)} - the device format closest to the desired
+ * format and the conversions required between them.
+ */
+public final class NegotiatedFormat {
+    public enum Strategy {
+        /**
+         * Prefers formats requiring lossless conversions only (exact rate, no downmix, no bit depth reduction).
+         */
+        BIT_PERFECT,
+        /**
+         * Prefers formats requiring the cheapest conversions, lossy ones included.
+         */
+        LOWEST_CPU
+    }
+
+    public enum Conversion {
+        ENDIANNESS(true),
+        SIGNEDNESS(true),
+        BIT_DEPTH_WIDENING(true),
+        BIT_DEPTH_NARROWING(false),
+        // between integer and float samples
+        ENCODING(false),
+        SAMPLE_RATE(false),
+        CHANNELS_UPMIX(true),
+        CHANNELS_DOWNMIX(false);
+
+        private final boolean isLossless;
+
+        Conversion(boolean isLossless) {
+            this.isLossless = isLossless;
+        }
+
+        public boolean isLossless() {
+            return isLossless;
+        }
+    }
+
+    private final AudioFormat desiredFormat;
+    private final AudioFormat deviceFormat;
+    private final Set<Conversion> conversions;
+    private final int cost;
+
+    NegotiatedFormat(@Nonnull AudioFormat desiredFormat, @Nonnull AudioFormat deviceFormat, @Nonnull EnumSet<Conversion> conversions, int cost) {
+        this.desiredFormat = desiredFormat;
+        this.deviceFormat = deviceFormat;
+        this.conversions = Collections.unmodifiableSet(conversions);
+        this.cost = cost;
+    }
+
+    @Nonnull
+    public AudioFormat getDesiredFormat() {
+        return desiredFormat;
+    }
+
+    /**
+     * @return supported device format to open the line with
+     */
+    @Nonnull
+    public AudioFormat getDeviceFormat() {
+        return deviceFormat;
+    }
+
+    @Nonnull
+    public Set<Conversion> getConversions() {
+        return conversions;
+    }
+
+    /**
+     * @return relative cost of the conversions for the negotiation strategy, 0 for the desired format itself
+     */
+    public int getCost() {
+        return cost;
+    }
+
+    public boolean isExact() {
+        return conversions.isEmpty();
+    }
+
+    /**
+     * @return true if all samples pass unchanged, only repacked
+     */
+    public boolean isBitPerfect() {
+        for (Conversion conversion : conversions) {
+            if (!conversion.isLossless())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "NegotiatedFormat{" +
+                "deviceFormat=" + deviceFormat +
+                ", conversions=" + conversions +
+                ", cost=" + cost +
+                '}';
+    }
+}
@@ -0,0 +1,124 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.TargetDataLine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Event-triggered recording: the capture line continuously fills a fixed off-heap ring (see {@link SharedCapture})
+ * with the last pre-trigger period, overwritten in place. {@link #save(Path, int)} writes the period before the trigger
+ * plus the following audio to a WAV file in own thread, the line keeps running and the capture thread never waits
+ * for the save.
+ */
+public final class PreTriggerRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(PreTriggerRecorder.class);
+    // ring beyond the pre-trigger period, time for the save to copy out the oldest bytes before being overwritten
+    private static final int HEADROOM_MS = 1000;
+
+    private final SharedCapture capture;
+    private final AudioFormat lineFormat;
+    private final AudioFormat wavFormat;
+    private final long preTriggerBytes;
+
+    /**
+     * @param line         open line
+     * @param preTriggerMS period kept before the trigger
+     */
+    public PreTriggerRecorder(@Nonnull TargetDataLine line, int preTriggerMS) {
+        this.lineFormat = line.getFormat();
+        this.wavFormat = WavRecorder.getWavFormat(lineFormat);
+        long bytesPerSec = (long) lineFormat.getFrameRate() * lineFormat.getFrameSize();
+        this.preTriggerBytes = bytesPerSec * preTriggerMS / 1000;
+        long ringBytes = preTriggerBytes + bytesPerSec * HEADROOM_MS / 1000;
+        if (ringBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Pre-trigger period of " + preTriggerMS + "ms too long");
+        this.capture = new SharedCapture(line, (int) ringBytes);
+    }
+
+    /**
+     * Starts the line and the continuous buffering.
+     */
+    public void start() {
+        capture.start();
+    }
+
+    /**
+     * Stops the buffering and the line, running saves finish with the audio captured so far.
+     */
+    public void stop() {
+        capture.stop();
+    }
+
+    /**
+     * Saves the pre-trigger period (or less if not captured yet) plus postTriggerMS of the following audio.
+     *
+     * @return completed with the count of bytes lost because the save could not keep up with the ring
+     */
+    @Nonnull
+    public CompletableFuture<Long> save(@Nonnull Path path, int postTriggerMS) {
+        // positioned in the ring right now, the rest runs in the save thread
+        SharedCapture.Reader reader = capture.addReader(SharedCapture.SlowConsumerPolicy.OVERWRITE, preTriggerBytes);
+        long postBytes = (long) lineFormat.getFrameRate() * postTriggerMS / 1000 * lineFormat.getFrameSize();
+        long totalBytes = reader.available() + postBytes;
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                long lost = writeFile(reader, path, totalBytes);
+                result.complete(lost);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Saving " + path + " failed", e);
+                result.completeExceptionally(e);
+            } finally {
+                reader.close();
+            }
+        }, "csjsound pre-trigger save");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    private long writeFile(@Nonnull SharedCapture.Reader reader, @Nonnull Path path, long totalBytes) throws IOException {
+        boolean isWavLayout = wavFormat.matches(lineFormat) && wavFormat.getFrameSize() == lineFormat.getFrameSize();
+        FormatConverter converter = isWavLayout ? null : FormatConverter.create(lineFormat, wavFormat);
+        if (!isWavLayout && converter == null)
+            throw new IllegalArgumentException("Unsupported format " + lineFormat);
+        int frameBytes = lineFormat.getFrameSize();
+        int chunkFrames = Math.max(1, capture.getCapacity() / frameBytes / 16);
+        byte[] lineBytes = new byte[chunkFrames * frameBytes];
+        byte[] wavBytes = converter != null ? new byte[chunkFrames * wavFormat.getFrameSize()] : lineBytes;
+        long dataBytes = 0;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ch.write(WavRecorder.createHeader(wavFormat), 0);
+            ch.position(WavRecorder.getHeaderBytes(wavFormat));
+            long remaining = totalBytes - reader.getDroppedBytes();
+            while (remaining > 0) {
+                int len = (int) Math.min(lineBytes.length, remaining);
+                int read = reader.read(lineBytes, 0, len);
+                if (read <= 0)
+                    // capture stopped
+                    break;
+                int bytes = converter != null ? converter.convert(lineBytes, 0, read / frameBytes, wavBytes, 0, read / frameBytes) : read;
+                ByteBuffer buf = ByteBuffer.wrap(wavBytes, 0, bytes);
+                while (buf.hasRemaining())
+                    ch.write(buf);
+                dataBytes += bytes;
+                // bytes lost count into the window
+                remaining = totalBytes - reader.getDroppedBytes() - dataBytes / wavFormat.getFrameSize() * frameBytes;
+            }
+            WavRecorder.finalizeHeader(ch, wavFormat, dataBytes, path);
+        }
+        long lost = reader.getDroppedBytes();
+        if (lost > 0)
+            logger.warn("Save " + path + " lost " + lost + " bytes overwritten in the ring");
+        return lost;
+    }
+}
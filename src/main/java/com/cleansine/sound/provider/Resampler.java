@@ -0,0 +1,189 @@
+package com.cleansine.sound.provider;
+
+import java.util.Arrays;
+
+/**
+ * Polyphase windowed-sinc resampler of interleaved float frames.
+ * The prototype lowpass is precomputed for PHASES sub-sample positions, the coefficients of the two phases around
+ * the exact position are linearly interpolated. Therefore any ratio works, including one varied while running
+ * (see {@link #setRatio(double)}).
+ * Input frames are appended to a history buffer, output frames are produced as long as the filter has enough input.
+ * Not thread-safe.
+ */
+final class Resampler {
+    private static final int PHASES = 256;
+    // taps per phase for upsampling, scaled up with the downsampling factor to keep the transition band
+    private static final int BASE_TAPS = 32;
+    private static final int MAX_TAPS = 256;
+    private static final double KAISER_BETA = 8.6;
+    // passband edge relative to the Nyquist frequency of the lower rate
+    private static final double CUTOFF = 0.91;
+
+    private final int channels;
+    private final int taps;
+    // (PHASES + 1) * taps coefficients, phase-major for sequential access
+    private final float[] coeffs;
+    // input frames per output frame
+    private double step;
+    // interleaved input frames not consumed yet
+    private float[] history;
+    private int historyFrames;
+    // position of the next output frame in the history, in input frames
+    private double pos;
+
+    /**
+     * @param ratio output rate / input rate
+     */
+    Resampler(int channels, double ratio, int initialCapacityFrames) {
+        this.channels = channels;
+        this.step = 1.0 / ratio;
+        int factor = ratio < 1.0 ? (int) Math.ceil(1.0 / ratio) : 1;
+        this.taps = Math.min(MAX_TAPS, BASE_TAPS * factor);
+        this.coeffs = createCoeffs(taps, CUTOFF * Math.min(1.0, ratio));
+        this.history = new float[getHistoryFrames(initialCapacityFrames) * channels];
+        reset();
+    }
+
+    // written frames + frames kept for the filter (before the position and lookahead), + the fraction of the position
+    private int getHistoryFrames(int writeFrames) {
+        return writeFrames + 2 * taps + 2;
+    }
+
+    /**
+     * Grows the history for writes of up to writeFrames, the write path then never allocates as long as the output
+     * is read after each write.
+     */
+    void ensureCapacity(int writeFrames) {
+        int needed = getHistoryFrames(writeFrames) * channels;
+        if (needed > history.length)
+            history = Arrays.copyOf(history, needed);
+    }
+
+    /**
+     * @param cutoff relative to the input Nyquist frequency
+     */
+    private static float[] createCoeffs(int taps, double cutoff) {
+        float[] coeffs = new float[(PHASES + 1) * taps];
+        int half = taps / 2;
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int phase = 0; phase <= PHASES; ++phase) {
+            double frac = (double) phase / PHASES;
+            for (int k = 0; k < taps; ++k) {
+                // distance of tap k from the output position, in input frames
+                double t = frac + half - 1 - k;
+                double x = Math.PI * cutoff * t;
+                double sinc = Math.abs(x) < 1e-12 ? 1.0 : Math.sin(x) / x;
+                double w = t / half;
+                double window = Math.abs(w) >= 1.0 ? 0.0 : besselI0(KAISER_BETA * Math.sqrt(1.0 - w * w)) / i0Beta;
+                coeffs[phase * taps + k] = (float) (cutoff * sinc * window);
+            }
+        }
+        return coeffs;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 50; ++k) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+
+    /**
+     * Drops all buffered input, the next output starts with the next written frame.
+     */
+    void reset() {
+        // leading zeros so that the first output frame is aligned with the first input frame
+        historyFrames = taps / 2 - 1;
+        Arrays.fill(history, 0, historyFrames * channels, 0f);
+        pos = historyFrames;
+    }
+
+    /**
+     * @param ratio output rate / input rate, the filter cutoff stays as created
+     */
+    void setRatio(double ratio) {
+        this.step = 1.0 / ratio;
+    }
+
+    double getRatio() {
+        return 1.0 / step;
+    }
+
+    /**
+     * @return input frames buffered beyond the current output position, i.e. the latency in input frames
+     */
+    double getBufferedFrames() {
+        return historyFrames - pos;
+    }
+
+    /**
+     * @return input frames held back as filter lookahead, zero frames of this count push all real input out
+     */
+    int getLookaheadFrames() {
+        return taps / 2;
+    }
+
+    void write(float[] in, int inOff, int frames) {
+        int needed = (historyFrames + frames) * channels;
+        if (needed > history.length)
+            // only if the output was not read, or writes beyond ensureCapacity()
+            history = Arrays.copyOf(history, Math.max(needed, history.length * 2));
+        System.arraycopy(in, inOff, history, historyFrames * channels, frames * channels);
+        historyFrames += frames;
+    }
+
+    /**
+     * Produces output frames as long as buffered input suffices.
+     *
+     * @return frames written to out
+     */
+    int read(float[] out, int outOff, int maxFrames) {
+        int half = taps / 2;
+        int produced = 0;
+        int o = outOff;
+        while (produced < maxFrames) {
+            int i = (int) pos;
+            if (i + half >= historyFrames)
+                // not enough lookahead
+                break;
+            double phasePos = (pos - i) * PHASES;
+            int phase = (int) phasePos;
+            float a = (float) (phasePos - phase);
+            int c0 = phase * taps;
+            int c1 = c0 + taps;
+            int first = (i - half + 1) * channels;
+            for (int ch = 0; ch < channels; ++ch) {
+                float sum0 = 0f;
+                float sum1 = 0f;
+                for (int k = 0, h = first + ch; k < taps; ++k, h += channels) {
+                    float x = history[h];
+                    sum0 += x * coeffs[c0 + k];
+                    sum1 += x * coeffs[c1 + k];
+                }
+                out[o + ch] = sum0 + a * (sum1 - sum0);
+            }
+            o += channels;
+            ++produced;
+            pos += step;
+        }
+        compact();
+        return produced;
+    }
+
+    // dropping history frames no longer needed by the filter
+    private void compact() {
+        int drop = (int) pos - (taps / 2 - 1);
+        if (drop <= 0)
+            return;
+        drop = Math.min(drop, historyFrames);
+        System.arraycopy(history, drop * channels, history, 0, (historyFrames - drop) * channels);
+        historyFrames -= drop;
+        pos -= drop;
+    }
+}
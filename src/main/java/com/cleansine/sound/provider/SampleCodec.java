@@ -0,0 +1,329 @@
+package com.cleansine.sound.provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Bulk decoding/encoding of PCM samples between bytes and int/float arrays.
+ * Integer samples are decoded left-justified to the full 32-bit range, float samples to [-1, 1).
+ * Every codec has its own tight loops without per-sample branches (endianness is resolved outside the loops,
+ * signedness by XOR of the sign bit, float to int by rounding to nearest with saturation) so that the JIT can unroll/vectorize them.
+ */
+abstract class SampleCodec {
+    static final float INT_TO_FLOAT = 1.0f / 2147483648.0f;
+
+    final int sampleBytes;
+    final boolean isBigEndian;
+
+    SampleCodec(int sampleBytes, boolean isBigEndian) {
+        this.sampleBytes = sampleBytes;
+        this.isBigEndian = isBigEndian;
+    }
+
+    /**
+     * @return codec for the sample layout of the format or null if not supported.
+     * Integer samples must fill whole bytes (e.g. 24 bits in 3 bytes), floats must be 32-bit.
+     */
+    @Nullable
+    static SampleCodec create(@Nonnull AudioFormat format) {
+        int channels = format.getChannels();
+        int bits = format.getSampleSizeInBits();
+        if (channels <= 0 || bits <= 0 || format.getFrameSize() != channels * ((bits + 7) / 8) || bits % 8 != 0)
+            return null;
+        boolean isBigEndian = format.isBigEndian();
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding))
+            return bits == 32 ? new Float32(isBigEndian) : null;
+        boolean isSigned;
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(encoding))
+            isSigned = true;
+        else if (AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding))
+            isSigned = false;
+        else
+            return null;
+        switch (bits) {
+            case 8:
+                return new Int8(isSigned);
+            case 16:
+                return new Int16(isSigned, isBigEndian);
+            case 24:
+                return new Int24(isSigned, isBigEndian);
+            case 32:
+                return new Int32(isSigned, isBigEndian);
+            default:
+                return null;
+        }
+    }
+
+    abstract void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples);
+
+    abstract void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples);
+
+    abstract void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples);
+
+    abstract void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples);
+
+    /**
+     * @return float sample rounded to the nearest integer sample of the given bits and saturated, left-justified to 32 bits
+     */
+    static int floatToInt(float sample, int bits) {
+        long max = (1L << (bits - 1)) - 1;
+        long v = (long) Math.rint(sample * (double) (1L << (bits - 1)));
+        return (int) Math.max(-max - 1, Math.min(max, v)) << (32 - bits);
+    }
+
+    // unsigned samples have the sign bit flipped
+    private static int getSignFlip(boolean isSigned) {
+        return isSigned ? 0 : 0x80000000;
+    }
+
+    static final class Int8 extends SampleCodec {
+        private final int signFlip;
+
+        Int8(boolean isSigned) {
+            super(1, false);
+            this.signFlip = getSignFlip(isSigned);
+        }
+
+        @Override
+        void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples) {
+            for (int i = 0; i < samples; ++i)
+                dst[dstOff + i] = (src[srcOff + i] << 24) ^ signFlip;
+        }
+
+        @Override
+        void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0; i < samples; ++i)
+                dst[dstOff + i] = (byte) ((src[srcOff + i] ^ signFlip) >> 24);
+        }
+
+        @Override
+        void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples) {
+            for (int i = 0; i < samples; ++i)
+                dst[dstOff + i] = ((src[srcOff + i] << 24) ^ signFlip) * INT_TO_FLOAT;
+        }
+
+        @Override
+        void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0; i < samples; ++i)
+                dst[dstOff + i] = (byte) ((floatToInt(src[srcOff + i], 8) ^ signFlip) >> 24);
+        }
+    }
+
+    static final class Int16 extends SampleCodec {
+        private final int signFlip;
+        // byte offsets of the low/high byte within the sample
+        private final int lo;
+        private final int hi;
+
+        Int16(boolean isSigned, boolean isBigEndian) {
+            super(2, isBigEndian);
+            this.signFlip = getSignFlip(isSigned);
+            this.lo = isBigEndian ? 1 : 0;
+            this.hi = isBigEndian ? 0 : 1;
+        }
+
+        @Override
+        void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples) {
+            for (int i = 0, s = srcOff + lo, h = srcOff + hi; i < samples; ++i, s += 2, h += 2)
+                dst[dstOff + i] = (((src[s] & 0xff) << 16) | (src[h] << 24)) ^ signFlip;
+        }
+
+        @Override
+        void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0, d = dstOff + lo, h = dstOff + hi; i < samples; ++i, d += 2, h += 2) {
+                int v = src[srcOff + i] ^ signFlip;
+                dst[d] = (byte) (v >> 16);
+                dst[h] = (byte) (v >> 24);
+            }
+        }
+
+        @Override
+        void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples) {
+            for (int i = 0, s = srcOff + lo, h = srcOff + hi; i < samples; ++i, s += 2, h += 2)
+                dst[dstOff + i] = ((((src[s] & 0xff) << 16) | (src[h] << 24)) ^ signFlip) * INT_TO_FLOAT;
+        }
+
+        @Override
+        void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0, d = dstOff + lo, h = dstOff + hi; i < samples; ++i, d += 2, h += 2) {
+                int v = floatToInt(src[srcOff + i], 16) ^ signFlip;
+                dst[d] = (byte) (v >> 16);
+                dst[h] = (byte) (v >> 24);
+            }
+        }
+    }
+
+    static final class Int24 extends SampleCodec {
+        private final int signFlip;
+        private final int b0;
+        private final int b1;
+        private final int b2;
+
+        Int24(boolean isSigned, boolean isBigEndian) {
+            super(3, isBigEndian);
+            this.signFlip = getSignFlip(isSigned);
+            this.b0 = isBigEndian ? 2 : 0;
+            this.b1 = 1;
+            this.b2 = isBigEndian ? 0 : 2;
+        }
+
+        @Override
+        void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples) {
+            for (int i = 0, s = srcOff; i < samples; ++i, s += 3)
+                dst[dstOff + i] = (((src[s + b0] & 0xff) << 8) | ((src[s + b1] & 0xff) << 16) | (src[s + b2] << 24)) ^ signFlip;
+        }
+
+        @Override
+        void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0, d = dstOff; i < samples; ++i, d += 3) {
+                int v = src[srcOff + i] ^ signFlip;
+                dst[d + b0] = (byte) (v >> 8);
+                dst[d + b1] = (byte) (v >> 16);
+                dst[d + b2] = (byte) (v >> 24);
+            }
+        }
+
+        @Override
+        void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples) {
+            for (int i = 0, s = srcOff; i < samples; ++i, s += 3)
+                dst[dstOff + i] = ((((src[s + b0] & 0xff) << 8) | ((src[s + b1] & 0xff) << 16) | (src[s + b2] << 24)) ^ signFlip) * INT_TO_FLOAT;
+        }
+
+        @Override
+        void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            for (int i = 0, d = dstOff; i < samples; ++i, d += 3) {
+                int v = floatToInt(src[srcOff + i], 24) ^ signFlip;
+                dst[d + b0] = (byte) (v >> 8);
+                dst[d + b1] = (byte) (v >> 16);
+                dst[d + b2] = (byte) (v >> 24);
+            }
+        }
+    }
+
+    static final class Int32 extends SampleCodec {
+        private final int signFlip;
+
+        Int32(boolean isSigned, boolean isBigEndian) {
+            super(4, isBigEndian);
+            this.signFlip = getSignFlip(isSigned);
+        }
+
+        @Override
+        void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = getBE(src, s) ^ signFlip;
+            } else {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = getLE(src, s) ^ signFlip;
+            }
+        }
+
+        @Override
+        void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setBE(dst, d, src[srcOff + i] ^ signFlip);
+            } else {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setLE(dst, d, src[srcOff + i] ^ signFlip);
+            }
+        }
+
+        @Override
+        void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = (getBE(src, s) ^ signFlip) * INT_TO_FLOAT;
+            } else {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = (getLE(src, s) ^ signFlip) * INT_TO_FLOAT;
+            }
+        }
+
+        @Override
+        void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setBE(dst, d, floatToInt(src[srcOff + i], 32) ^ signFlip);
+            } else {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setLE(dst, d, floatToInt(src[srcOff + i], 32) ^ signFlip);
+            }
+        }
+    }
+
+    static final class Float32 extends SampleCodec {
+        Float32(boolean isBigEndian) {
+            super(4, isBigEndian);
+        }
+
+        @Override
+        void decodeInt(byte[] src, int srcOff, int[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = floatToInt(Float.intBitsToFloat(getBE(src, s)), 32);
+            } else {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = floatToInt(Float.intBitsToFloat(getLE(src, s)), 32);
+            }
+        }
+
+        @Override
+        void encodeInt(int[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setBE(dst, d, Float.floatToRawIntBits(src[srcOff + i] * INT_TO_FLOAT));
+            } else {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setLE(dst, d, Float.floatToRawIntBits(src[srcOff + i] * INT_TO_FLOAT));
+            }
+        }
+
+        @Override
+        void decodeFloat(byte[] src, int srcOff, float[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = Float.intBitsToFloat(getBE(src, s));
+            } else {
+                for (int i = 0, s = srcOff; i < samples; ++i, s += 4)
+                    dst[dstOff + i] = Float.intBitsToFloat(getLE(src, s));
+            }
+        }
+
+        @Override
+        void encodeFloat(float[] src, int srcOff, byte[] dst, int dstOff, int samples) {
+            if (isBigEndian) {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setBE(dst, d, Float.floatToRawIntBits(src[srcOff + i]));
+            } else {
+                for (int i = 0, d = dstOff; i < samples; ++i, d += 4)
+                    setLE(dst, d, Float.floatToRawIntBits(src[srcOff + i]));
+            }
+        }
+    }
+
+    private static int getLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+    }
+
+    private static int getBE(byte[] b, int off) {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void setLE(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+        b[off + 2] = (byte) (v >> 16);
+        b[off + 3] = (byte) (v >> 24);
+    }
+
+    private static void setBE(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,377 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.TargetDataLine;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One open TargetDataLine shared by many readers, e.g. a recorder, a level meter and an analyzer on an exclusive device.
+ * A single capture thread reads the line into an off-heap ring, each reader has its own cursor in the ring and copies
+ * the bytes out in its own thread. Readers are added/removed at any time, without extra reads of the line.
+ * <p>
+ * Readers too slow for the ring size are handled by their policy, see {@link SlowConsumerPolicy}.
+ */
+public final class SharedCapture {
+    private static final Logger logger = LoggerFactory.getLogger(SharedCapture.class);
+    // waiting for free space/new data is re-checked in this period
+    private static final long WAIT_MS = 10;
+    // ordering of the plain ring accesses vs. overwritePos, VarHandle fences are not available on Java 8
+    @Nullable
+    private static final MethodHandle loadFence = findUnsafeFence("loadFence");
+    @Nullable
+    private static final MethodHandle storeFence = findUnsafeFence("storeFence");
+
+    public enum SlowConsumerPolicy {
+        /**
+         * The capture thread waits for the reader to free the ring space. May overrun the device buffer!
+         */
+        BLOCK,
+        /**
+         * The reader loses its whole backlog and continues with the live data.
+         */
+        DROP,
+        /**
+         * The reader loses only its oldest bytes overwritten by the new data.
+         */
+        OVERWRITE
+    }
+
+    private final TargetDataLine line;
+    private final int frameBytes;
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int chunkBytes;
+    private final CopyOnWriteArrayList<Reader> readers = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    // total bytes written to the ring
+    private volatile long writePos;
+    // bytes before this position may be overwritten by the write in progress
+    private volatile long overwritePos;
+    private volatile boolean isRunning;
+    @Nullable
+    private Thread thread;
+
+    /**
+     * @param line      open line
+     * @param ringBytes ring size, rounded down to whole frames
+     */
+    public SharedCapture(@Nonnull TargetDataLine line, int ringBytes) {
+        if (!line.isOpen())
+            throw new IllegalStateException("Line must be open");
+        this.line = line;
+        this.frameBytes = line.getFormat().getFrameSize();
+        // reading by a fraction of the line buffer keeps the device buffer drained
+        int chunkFrames = Math.max(1, line.getBufferSize() / frameBytes / 4);
+        this.chunkBytes = chunkFrames * frameBytes;
+        this.capacity = ringBytes / frameBytes * frameBytes;
+        if (capacity < 2 * chunkBytes)
+            throw new IllegalArgumentException("Ring of " + ringBytes + " bytes too small for read chunks of " + chunkBytes + " bytes");
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Starts the line and the capture thread.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        isRunning = true;
+        Thread t = new Thread(this::run, "csjsound shared capture");
+        t.setDaemon(true);
+        thread = t;
+        line.start();
+        t.start();
+    }
+
+    /**
+     * Stops the capture thread and the line, the line stays open. Blocked readers return what they have read.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null)
+            return;
+        isRunning = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        line.stop();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return new reader starting at the current live position
+     */
+    @Nonnull
+    public Reader addReader(@Nonnull SlowConsumerPolicy policy) {
+        return addReader(policy, 0);
+    }
+
+    /**
+     * @param backlogBytes the reader starts this many bytes before the live position, at most the ring history
+     * @return new reader
+     */
+    @Nonnull
+    public Reader addReader(@Nonnull SlowConsumerPolicy policy, long backlogBytes) {
+        Reader reader = new Reader(policy, backlogBytes / frameBytes * frameBytes);
+        readers.add(reader);
+        return reader;
+    }
+
+    public int getFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * @return ring size in bytes
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Nullable
+    private static MethodHandle findUnsafeFence(@Nonnull String name) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflect(unsafeClass.getMethod(name)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Memory fence " + name + " not available, readers overtaken by the capture may get torn data: " + e);
+            return null;
+        }
+    }
+
+    private static void fence(@Nullable MethodHandle fence) {
+        if (fence == null)
+            return;
+        try {
+            fence.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Memory fence failed", e);
+        }
+    }
+
+    private void run() {
+        try {
+            capture();
+        } finally {
+            // also when ended by a closed line or an interrupt, blocked readers return what they have read
+            isRunning = false;
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void capture() {
+        byte[] chunk = new byte[chunkBytes];
+        ByteBuffer writeView = ring.duplicate();
+        while (isRunning) {
+            int read = line.read(chunk, 0, chunk.length);
+            if (read <= 0) {
+                if (!line.isOpen()) {
+                    logger.warn("Shared line closed, stopping the capture");
+                    break;
+                }
+                // the read does not wait in a line stopped meanwhile
+                synchronized (lock) {
+                    try {
+                        lock.wait(WAIT_MS);
+                    } catch (InterruptedException e) {
+                        logger.warn("Interrupted while waiting for the line");
+                        break;
+                    }
+                }
+                continue;
+            }
+            long pos = writePos;
+            if (!waitForBlockingReaders(pos + read))
+                break;
+            // readers check this position after their copy-out
+            overwritePos = pos + read - capacity;
+            // the ring writes must not become visible before overwritePos
+            fence(storeFence);
+            int ringOff = (int) (pos % capacity);
+            int first = Math.min(read, capacity - ringOff);
+            writeView.clear();
+            writeView.position(ringOff);
+            writeView.put(chunk, 0, first);
+            if (first < read) {
+                writeView.position(0);
+                writeView.put(chunk, first, read - first);
+            }
+            writePos = pos + read;
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return false if stopped while waiting
+     */
+    private boolean waitForBlockingReaders(long newWritePos) {
+        for (Reader reader : readers) {
+            if (reader.policy != SlowConsumerPolicy.BLOCK)
+                continue;
+            synchronized (lock) {
+                while (isRunning && !reader.isClosed && newWritePos - reader.readPos > capacity) {
+                    try {
+                        lock.wait(WAIT_MS);
+                    } catch (InterruptedException e) {
+                        logger.warn("Interrupted while waiting for a blocking reader");
+                        return false;
+                    }
+                }
+            }
+        }
+        return isRunning;
+    }
+
+    /**
+     * Cursor of one consumer in the ring. Not thread-safe, one thread per reader.
+     */
+    public final class Reader implements AutoCloseable {
+        private final SlowConsumerPolicy policy;
+        private final ByteBuffer readView = ring.duplicate();
+        private volatile long readPos;
+        private volatile boolean isClosed;
+        private volatile long droppedBytes;
+
+        private Reader(@Nonnull SlowConsumerPolicy policy, long backlogBytes) {
+            this.policy = policy;
+            long pos = writePos;
+            // the chunk being written may already overwrite the oldest bytes
+            this.readPos = Math.max(Math.max(0, pos - backlogBytes), Math.max(overwritePos, pos - capacity));
+        }
+
+        @Nonnull
+        public SlowConsumerPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return bytes readable without blocking
+         */
+        public int available() {
+            return (int) Math.min(capacity, writePos - readPos);
+        }
+
+        /**
+         * @return bytes lost by DROP/OVERWRITE policies
+         */
+        public long getDroppedBytes() {
+            return droppedBytes;
+        }
+
+        /**
+         * Blocks until len bytes are read, the capture is stopped or the reader closed.
+         *
+         * @return bytes read, whole frames
+         */
+        public int read(@Nonnull byte[] b, int off, int len) {
+            if (len % frameBytes != 0)
+                throw new IllegalArgumentException("Requesting to read non-integral number of frames (" + len + " bytes, " + "frameBytes = " + frameBytes + " bytes)");
+            int total = 0;
+            while (total < len && !isClosed) {
+                int copied = copyOut(b, off + total, len - total);
+                if (copied > 0) {
+                    total += copied;
+                    if (policy == SlowConsumerPolicy.BLOCK) {
+                        synchronized (lock) {
+                            lock.notifyAll();
+                        }
+                    }
+                    continue;
+                }
+                if (!isRunning)
+                    break;
+                synchronized (lock) {
+                    if (writePos == readPos && isRunning && !isClosed) {
+                        try {
+                            lock.wait(WAIT_MS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            }
+            return total;
+        }
+
+        // copies the available bytes, discards those overwritten during the copy
+        private int copyOut(@Nonnull byte[] b, int off, int len) {
+            while (true) {
+                long start = readPos;
+                long end = writePos;
+                if (end - start > capacity || overwritePos > start) {
+                    skipOverwritten(start, end);
+                    continue;
+                }
+                int count = (int) Math.min(len, end - start);
+                if (count == 0)
+                    return 0;
+                int ringOff = (int) (start % capacity);
+                int first = Math.min(count, capacity - ringOff);
+                readView.clear();
+                readView.position(ringOff);
+                readView.get(b, off, first);
+                if (first < count) {
+                    readView.position(0);
+                    readView.get(b, off + first, count - first);
+                }
+                // the ring reads must complete before overwritePos is re-checked
+                fence(loadFence);
+                if (overwritePos > start) {
+                    // the writer overtook during the copy
+                    skipOverwritten(start, writePos);
+                    continue;
+                }
+                readPos = start + count;
+                return count;
+            }
+        }
+
+        private void skipOverwritten(long start, long end) {
+            long newPos;
+            if (policy == SlowConsumerPolicy.DROP)
+                newPos = end;
+            else
+                // OVERWRITE, and BLOCK never gets here
+                newPos = Math.max(overwritePos, end - capacity) + chunkBytes;
+            newPos = Math.min(newPos, end);
+            droppedBytes += newPos - start;
+            readPos = newPos;
+        }
+
+        /**
+         * Removes the reader from the capture, a blocked read() returns.
+         */
+        @Override
+        public void close() {
+            isClosed = true;
+            readers.remove(this);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -2,12 +2,10 @@ package com.cleansine.sound.provider;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Map;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 
 /**
@@ -16,7 +14,7 @@ import javax.sound.sampled.LineUnavailableException;
  *
  *
  * Note: as SimpleClip is ultimately based on SimpleLine it does not
- *       support "controls" nor does it support LineListener
+ *       support "controls", LineListeners are notified by SimpleLine
  *
  */
 class SimpleClip extends SimpleSourceDataLine
@@ -35,13 +33,12 @@ class SimpleClip extends SimpleSourceDataLine
 
 
     SimpleClip(
-            DataLine.Info info
+            SimpleDataLineInfo info
             , AudioFormat format
             , int bufferSize
             , SimpleMixer mixer
-            , Map<AudioFormat, AudioFormat> hwFormatByFormat
     ) {
-        super(info, format, bufferSize, mixer, hwFormatByFormat);
+        super(info, format, bufferSize, mixer);
     }
 
     // CLIP METHODS
@@ -72,7 +69,7 @@ class SimpleClip extends SimpleSourceDataLine
         // $$fb part of fix for 4679187: Clip.open() throws unexpected Exceptions
         isFullySpecifiedPCMFormat(format);
 
-        synchronized (mixer) {
+        synchronized (lifecycleLock) {
             if (isOpen()) {
                 throw new IllegalStateException("Clip is already open with format " + getFormat() +
                         " and frame lengh of " + getFrameLength());
@@ -117,7 +114,7 @@ class SimpleClip extends SimpleSourceDataLine
         // $$fb part of fix for 4679187: Clip.open() throws unexpected Exceptions
         isFullySpecifiedPCMFormat(stream.getFormat());
 
-        synchronized (mixer) {
+        synchronized (lifecycleLock) {
             byte[] streamData = null;
 
             if (isOpen()) {
@@ -211,7 +208,7 @@ class SimpleClip extends SimpleSourceDataLine
         // $$fb although getFramePosition should return the number of rendered
         // frames, it is intuitive that setFramePosition will modify that
         // value.
-        bytePos = frames * frameSize;
+        bytePos = toDeviceFrames(frames) * deviceFrameBytes;
 
         // cease currently playing buffer
         flush();
@@ -336,7 +333,8 @@ class SimpleClip extends SimpleSourceDataLine
 
     void isFullySpecifiedPCMFormat(AudioFormat format) throws LineUnavailableException {
         if (!format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
-                && !format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+                && !format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)
+                && !format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT)) {
             throw new LineUnavailableException("SimpleClip must be PCM format");
         }
         if ((format.getFrameRate() <= 0)
@@ -4,17 +4,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineEvent;
 import javax.sound.sampled.LineUnavailableException;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     private static final Logger logger = LoggerFactory.getLogger(SimpleSourceDataLine.class);
     protected static final int PCM_ENCODING = 0;
     private static final int DEFAULT_BUFFER_TIME_MS = 500;
+    // openWithLatency(): 2 periods up to this latency, 4 periods above
+    private static final long SHORT_LATENCY_US = 20_000;
+    // deadline of the blocking read/write
+    protected static final long NO_DEADLINE = Long.MAX_VALUE;
     protected final String deviceID;
     protected final boolean isSource;
     protected AudioFormat format;
@@ -22,8 +29,15 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
     protected final Object lock = new Object();
     // all native calls are synchronized for one line
     protected final Object lockNative = new Object();
+    // open/start/stop/close of this line, the lines of one mixer do not block each other
+    protected final Object lifecycleLock = new Object();
+    // read/write path of this line, timed and non-blocking calls wait for it at most until their deadline
+    protected final ReentrantLock ioLock = new ReentrantLock();
     protected volatile boolean running;
     protected long nativePtr;
+    // parameters of the native handle for NativeHandlePool, null if not pooled
+    @Nullable
+    private String handleKey;
     protected int checkTimeMS;
     protected volatile boolean flushing = false;
     protected volatile long bytePos;
@@ -33,33 +47,89 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
     protected volatile boolean started;
     protected volatile boolean drained = false;
     protected volatile boolean active;
-    final private Map<AudioFormat, AudioFormat> hwFormatByFormat;
+    private final SimpleDataLineInfo lineInfo;
+    // converts between the line format and the device format, null if the device supports the line format directly
+    @Nullable
+    protected volatile FormatConverter converter;
+    // bytePos, bufferBytes and native available bytes count frames of this size
+    protected volatile int deviceFrameBytes;
+    // differs from the line frame rate when resampling
+    protected volatile float deviceFrameRate;
+    // device bytes, 0 = chosen by the device; requested by openWithLatency()
+    private int requestedPeriodBytes;
+    // device bytes of the open native stream, NOT_SPECIFIED if unknown
+    protected volatile int periodBytes = AudioSystem.NOT_SPECIFIED;
+    // formats of the open native stream
+    @Nullable
+    private volatile AudioFormat deviceFormat;
+    @Nullable
+    private volatile AudioFormat hwFormat;
 
 
     //protected FileOutputStream os = null;
 
-    protected SimpleDataLine(DataLine.Info info, SimpleMixer mixer, @Nonnull AudioFormat format, int bufferBytes, String deviceID, boolean isSource, @Nonnull Map<AudioFormat, AudioFormat> hwFormatByFormat) {
+    protected SimpleDataLine(@Nonnull SimpleDataLineInfo info, SimpleMixer mixer, @Nonnull AudioFormat format, int bufferBytes, String deviceID, boolean isSource) {
         super(info, mixer);
         this.format = format;
         this.bufferBytes = bufferBytes;
         this.deviceID = deviceID;
         this.checkTimeMS = 2;  // timeout to check whether all data have been read/written
         this.isSource = isSource;
-        this.hwFormatByFormat = hwFormatByFormat;
+        this.lineInfo = info;
+        this.deviceFrameBytes = format.getFrameSize();
+        this.deviceFrameRate = format.getFrameRate();
     }
 
 
     public void open(@Nonnull final AudioFormat format, final int bufferSize) throws LineUnavailableException {
-        if (!SimpleMixerProvider.isFullySpecifiedFormat(format)) {
-            throw new LineUnavailableException("Format " + format + " not fully specified, " + SimpleDataLine.class.getSimpleName() + " + supports only fully specified formats");
-        }
-        final AudioFormat hwFormat = determineHwFormat(format);
-        //noinspection SynchronizeOnNonFinalField
-        synchronized (mixer) {
+        open(format, bufferSize, 0);
+    }
+
+    /**
+     * Opens the line with the buffer size and period size negotiated for the target latency (buffer time), e.g. 5-10ms,
+     * and the wait interval of blocking read/write derived from the period. The achieved values are reported by
+     * {@link #getBufferSize()}, {@link #getLatencyMicros()} and {@link #getPeriodBytes()}.
+     */
+    public void openWithLatency(@Nonnull final AudioFormat format, long targetLatencyMicros) throws LineUnavailableException {
+        if (targetLatencyMicros <= 0)
+            throw new IllegalArgumentException("Invalid target latency " + targetLatencyMicros + "us");
+        long frames = Math.max(2, Math.round(format.getFrameRate() * targetLatencyMicros / 1_000_000.0));
+        if (frames * format.getFrameSize() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Target latency " + targetLatencyMicros + "us too long");
+        int periods = targetLatencyMicros <= SHORT_LATENCY_US ? 2 : 4;
+        open(format, (int) frames * format.getFrameSize(), (int) Math.max(1, frames / periods));
+    }
+
+    /**
+     * @param periodFrames line frames, 0 = chosen by the device
+     */
+    private void open(@Nonnull final AudioFormat format, final int bufferSize, int periodFrames) throws LineUnavailableException {
+        open(resolveDeviceConfig(format), bufferSize, periodFrames);
+    }
+
+    /**
+     * Opens with a config resolved before, e.g. prepared ahead of a format change.
+     */
+    final void open(@Nonnull final DeviceConfig config, final int bufferSize) throws LineUnavailableException {
+        open(config, bufferSize, 0);
+    }
+
+    private void open(@Nonnull final DeviceConfig config, final int bufferSize, int periodFrames) throws LineUnavailableException {
+        final AudioFormat format = config.format;
+        synchronized (lifecycleLock) {
             if (!isOpen()) {
                 mixer.openLine(this);
                 try {
-                    doOpen(hwFormat, bufferSize);
+                    converter = config.converter;
+                    deviceFormat = config.deviceFormat;
+                    deviceFrameBytes = config.deviceFormat.getFrameSize();
+                    deviceFrameRate = config.deviceFormat.getFrameRate();
+                    int deviceBufferBytes = bufferSize <= AudioSystem.NOT_SPECIFIED ? bufferSize
+                            : (int) (bufferSize / format.getFrameSize() * (double) deviceFrameRate / format.getFrameRate()) * deviceFrameBytes;
+                    requestedPeriodBytes = periodFrames <= 0 ? 0
+                            : (int) Math.max(1, Math.round(periodFrames * (double) deviceFrameRate / format.getFrameRate())) * deviceFrameBytes;
+                    doOpen(config.hwFormat, deviceBufferBytes);
+                    alignConverter(config.converter, format);
                     this.format = format;
                     setOpen(true);
                 } catch (LineUnavailableException e) {
@@ -86,15 +156,57 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
     }
 
 
+    /**
+     * Lets the converter process blocks of whole device periods, once the period of the opened device is known.
+     */
+    protected final void alignConverter(@Nullable FormatConverter conv, @Nonnull AudioFormat lineFormat) {
+        int period = periodBytes;
+        if (conv == null || period <= 0)
+            return;
+        int deviceFrames = period / deviceFrameBytes;
+        // the src side is the line for a source, the device for a target
+        conv.setPeriodFrames(isSource ? (int) Math.ceil(deviceFrames * (double) lineFormat.getFrameRate() / deviceFrameRate) : deviceFrames);
+    }
+
+    /**
+     * Resolves the device side of the line format, incl. creating the converter.
+     */
+    @Nonnull
+    DeviceConfig resolveDeviceConfig(@Nonnull final AudioFormat format) throws LineUnavailableException {
+        if (!SimpleMixerProvider.isFullySpecifiedFormat(format)) {
+            throw new LineUnavailableException("Format " + format + " not fully specified, " + SimpleDataLine.class.getSimpleName() + " + supports only fully specified formats");
+        }
+        AudioFormat deviceFormat = lineInfo.findDeviceFormat(format);
+        final FormatConverter newConverter;
+        if (deviceFormat != null) {
+            newConverter = isSource ? FormatConverter.create(format, deviceFormat) : FormatConverter.create(deviceFormat, format);
+            if (newConverter == null)
+                throw new LineUnavailableException("Conversion between format " + format + " and device format " + deviceFormat + " not supported");
+            logger.debug("Converting between the requested format " + format + " and device format " + deviceFormat);
+        } else {
+            deviceFormat = format;
+            newConverter = null;
+        }
+        return new DeviceConfig(format, deviceFormat, determineHwFormat(deviceFormat), newConverter);
+    }
+
+    /**
+     * @return true if the open line uses the same device and hw format as the config, i.e. the native stream fits
+     */
+    final boolean isSameDeviceConfig(@Nonnull DeviceConfig config) {
+        AudioFormat current = deviceFormat;
+        AudioFormat hw = hwFormat;
+        return current != null && hw != null
+                && config.deviceFormat.matches(current) && config.deviceFormat.getFrameSize() == current.getFrameSize()
+                && config.hwFormat.matches(hw) && config.hwFormat.getFrameSize() == hw.getFrameSize();
+    }
+
     @Nonnull
     private AudioFormat determineHwFormat(@Nonnull final AudioFormat format) {
-        // find in the list
-        for (Map.Entry<AudioFormat, AudioFormat> entry : hwFormatByFormat.entrySet()) {
-            if (entry.getKey().matches(format)) {
-                AudioFormat hwFormat = entry.getValue();
-                logger.debug("Using HW format " + hwFormat + " instead of the requested format " + format);
-                return hwFormat;
-            }
+        AudioFormat hwFormat = lineInfo.findHwFormat(format);
+        if (hwFormat != null) {
+            logger.debug("Using HW format " + hwFormat + " instead of the requested format " + format);
+            return hwFormat;
         }
         return format;
     }
@@ -105,8 +217,7 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     @Override
     public final void start() {
-        //noinspection SynchronizeOnNonFinalField
-        synchronized (mixer) {
+        synchronized (lifecycleLock) {
             if (isOpen()) {
                 if (!this.running) {
                     mixer.start(this);
@@ -123,8 +234,7 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     @Override
     public void stop() {
-        //noinspection SynchronizeOnNonFinalField
-        synchronized (mixer) {
+        synchronized (lifecycleLock) {
             if (isOpen()) {
                 if (running) {
                     doStop();
@@ -162,7 +272,56 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     @Override
     public int getBufferSize() {
-        return bufferBytes;
+        return (int) toLineBytes(bufferBytes);
+    }
+
+    /**
+     * @return buffer time of the open line in microseconds
+     */
+    public long getLatencyMicros() {
+        int frameBytes = deviceFrameBytes;
+        float rate = deviceFrameRate;
+        if (frameBytes <= 0 || rate <= 0)
+            return AudioSystem.NOT_SPECIFIED;
+        return (long) (bufferBytes / frameBytes * 1_000_000.0 / rate);
+    }
+
+    /**
+     * @return period size of the open line in bytes of the line format, NOT_SPECIFIED if not known
+     */
+    public int getPeriodBytes() {
+        int bytes = periodBytes;
+        return bytes > 0 ? (int) toLineBytes(bytes) : AudioSystem.NOT_SPECIFIED;
+    }
+
+    /**
+     * @return bytes of the line format for the same number of frames as deviceBytes
+     */
+    protected final long toLineBytes(long deviceBytes) {
+        int frameBytes = deviceFrameBytes;
+        if (frameBytes <= 0 || (frameBytes == format.getFrameSize() && deviceFrameRate == format.getFrameRate()))
+            return deviceBytes;
+        return toLineFrames(deviceBytes / frameBytes) * format.getFrameSize();
+    }
+
+    /**
+     * @return frames of the line rate for the same duration as deviceFrames
+     */
+    protected final long toLineFrames(long deviceFrames) {
+        float deviceRate = deviceFrameRate;
+        if (deviceRate <= 0 || deviceRate == format.getFrameRate())
+            return deviceFrames;
+        return (long) (deviceFrames * (double) format.getFrameRate() / deviceRate);
+    }
+
+    /**
+     * @return frames of the device rate for the same duration as lineFrames
+     */
+    protected final long toDeviceFrames(long lineFrames) {
+        float deviceRate = deviceFrameRate;
+        if (deviceRate <= 0 || deviceRate == format.getFrameRate())
+            return lineFrames;
+        return (long) (lineFrames * (double) deviceRate / format.getFrameRate());
     }
 
     @Override
@@ -176,12 +335,22 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
     }
 
     final void setStarted(boolean started) {
+        // queried before the monitor, the position query takes lockNative
+        long position = this.started != started ? getListenedEventPosition() : AudioSystem.NOT_SPECIFIED;
         synchronized (this) {
-            if (this.started != started)
-                this.started = started;
+            if (this.started == started)
+                return;
+            this.started = started;
+            // posted in the monitor, a concurrent START/STOP pair is queued in the order of the state changes
+            sendEvent(started ? LineEvent.Type.START : LineEvent.Type.STOP, position);
         }
     }
 
+    @Override
+    long getEventPosition() {
+        return nativePtr == 0 ? 0 : getLongFramePosition();
+    }
+
     final void setActive(boolean active) {
         synchronized (this) {
             if (this.active != active)
@@ -197,8 +366,7 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     @Override
     public final void close() {
-        //noinspection SynchronizeOnNonFinalField
-        synchronized (mixer) {
+        synchronized (lifecycleLock) {
             if (isOpen()) {
                 stop();
                 setOpen(false);
@@ -235,31 +403,116 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
         bufferBytes = (bufferBytes / hwFormat.getFrameSize()) * hwFormat.getFrameSize();
 
         boolean isSigned = hwFormat.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
-        nativePtr = SimpleMixer.nOpen(deviceID, isSource, PCM_ENCODING, (int) hwFormat.getSampleRate(), hwFormat.getSampleSizeInBits(), hwFormat.getFrameSize(),
-                hwFormat.getChannels(), isSigned, hwFormat.isBigEndian(), bufferBytes);
+        // aligning to frames, device frames = hw frames
+        int reqPeriodBytes = requestedPeriodBytes / hwFormat.getFrameSize() * hwFormat.getFrameSize();
+        handleKey = NativeHandlePool.isEnabled() ? NativeHandlePool.createKey(isSource, hwFormat, bufferBytes, reqPeriodBytes) : null;
+        long pooledPtr = handleKey != null ? mixer.getHandlePool().take(handleKey, isSource) : 0;
+        if (pooledPtr > 0)
+            nativePtr = pooledPtr;
+        else if (reqPeriodBytes > 0)
+            nativePtr = SimpleMixer.openWithPeriod(deviceID, isSource, PCM_ENCODING, (int) hwFormat.getSampleRate(), hwFormat.getSampleSizeInBits(), hwFormat.getFrameSize(),
+                    hwFormat.getChannels(), isSigned, hwFormat.isBigEndian(), bufferBytes, reqPeriodBytes);
+        else
+            nativePtr = SimpleMixer.nOpen(deviceID, isSource, PCM_ENCODING, (int) hwFormat.getSampleRate(), hwFormat.getSampleSizeInBits(), hwFormat.getFrameSize(),
+                    hwFormat.getChannels(), isSigned, hwFormat.isBigEndian(), bufferBytes);
 
         if (nativePtr <= 0) {
             throw new LineUnavailableException("line with hwFormat " + hwFormat + " not supported.");
         }
+        this.hwFormat = hwFormat;
 
         this.bufferBytes = SimpleMixer.nGetBufferBytes(nativePtr, isSource);
         if (this.bufferBytes < 1) {
             logger.warn("Native call nGetBufferBytes returned " + this.bufferBytes + "!");
             this.bufferBytes = bufferBytes;
         }
-        // 1/8 of buffer time
-        checkTimeMS = (int) ((long) this.bufferBytes / hwFormat.getFrameRate() * 1000.0f / hwFormat.getFrameSize()) / 8;
+        int nativePeriodBytes = SimpleMixer.getPeriodBytes(nativePtr, isSource);
+        if (nativePeriodBytes > 0)
+            periodBytes = nativePeriodBytes;
+        else
+            periodBytes = reqPeriodBytes > 0 && SimpleMixer.isOpenWithPeriodSupported() ? reqPeriodBytes : AudioSystem.NOT_SPECIFIED;
+        if (periodBytes > 0)
+            // 1/2 of period time
+            checkTimeMS = (int) ((long) periodBytes / hwFormat.getFrameRate() * 1000.0f / hwFormat.getFrameSize()) / 2;
+        else
+            // 1/8 of buffer time
+            checkTimeMS = (int) ((long) this.bufferBytes / hwFormat.getFrameRate() * 1000.0f / hwFormat.getFrameSize()) / 8;
+        logger.debug("Opened with buffer " + this.bufferBytes + " bytes (" + getLatencyMicros() + "us), period " + periodBytes + " bytes, wait interval " + Math.max(1, checkTimeMS) + "ms");
         bytePos = 0;
         inIO = false;
     }
 
+    /**
+     * @param timeout negative = no waiting, like 0
+     * @return deadline in System.nanoTime() for the timeout, NO_DEADLINE if beyond the nanoTime range (e.g. Long.MAX_VALUE)
+     */
+    static long toDeadline(long timeout, @Nonnull TimeUnit unit) {
+        long now = System.nanoTime();
+        // toNanos() saturates at Long.MAX_VALUE
+        long nanos = unit.toNanos(Math.max(0, timeout));
+        return nanos >= NO_DEADLINE - Math.max(0, now) ? NO_DEADLINE : now + nanos;
+    }
+
+    /**
+     * Locks ioLock, waiting at most until the deadline.
+     *
+     * @return false if not locked
+     */
+    protected final boolean lockIO(long deadlineNanos) {
+        if (deadlineNanos == NO_DEADLINE) {
+            ioLock.lock();
+            return true;
+        }
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0)
+            return ioLock.tryLock();
+        try {
+            return ioLock.tryLock(remaining, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the device in the read/write loop, at most checkTimeMS and never beyond the deadline.
+     *
+     * @return false if the deadline has passed, without waiting
+     */
+    protected final boolean waitInIO(long deadlineNanos) {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, checkTimeMS));
+        if (deadlineNanos != NO_DEADLINE) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            waitNanos = Math.min(waitNanos, remaining);
+        }
+        synchronized (lock) {
+            try {
+                logger.trace("Waiting in IO loop for " + waitNanos + "ns");
+                TimeUnit.NANOSECONDS.timedWait(lock, waitNanos);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return true;
+    }
+
     void doClose() {
         inIO = false;
         long prevID = nativePtr;
         nativePtr = 0;
         synchronized (lockNative) {
-            SimpleMixer.nClose(prevID, isSource);
+            boolean isParked = false;
+            if (handleKey != null && prevID > 0) {
+                // stopped by close(), the next user starts with empty buffer
+                SimpleMixer.nFlush(prevID, isSource);
+                isParked = mixer.getHandlePool().park(handleKey, isSource, prevID);
+            }
+            if (!isParked)
+                SimpleMixer.nClose(prevID, isSource);
         }
+        handleKey = null;
+        hwFormat = null;
         bytePos = 0;
     }
 
@@ -276,9 +529,7 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
     }
 
     void doStop() {
-        synchronized (lockNative) {
-            SimpleMixer.nStop(nativePtr, isSource);
-        }
+        stopNative();
         synchronized (lock) {
             inIO = false;
             lock.notifyAll();
@@ -287,6 +538,12 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
         setStarted(false);
     }
 
+    void stopNative() {
+        synchronized (lockNative) {
+            SimpleMixer.nStop(nativePtr, isSource);
+        }
+    }
+
     @Override
     public int available() {
         if (nativePtr == 0)
@@ -296,15 +553,40 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
             a = SimpleMixer.nGetAvailBytes(nativePtr, isSource);
         }
         logger.trace("Available: " + a + " bytes");
-        return a;
+        return (int) toLineBytes(a);
     }
 
+    /**
+     * Waits until the written bytes have played (source) or the captured bytes have been read (target), while running
+     * and not flushed. Polls the device instead of the blocking nDrain, lockNative is held only for the short queries
+     * and timed read/write of other threads or the shared timer tasks never wait for the whole drain.
+     */
     @Override
     public void drain() {
-        if (nativePtr != 0 && inIO) {
+        long targetBytePos = bytePos;
+        long lastRemaining = -1;
+        long lastProgressNanos = System.nanoTime();
+        // a device not progressing for twice the buffer time would never finish
+        long stallNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(2 * getLatencyMicros()));
+        while (inIO && !flushing) {
+            // source: bytes not played yet, target: bytes not read yet
+            long remaining;
             synchronized (lockNative) {
-                SimpleMixer.nDrain(nativePtr);
+                if (nativePtr == 0)
+                    break;
+                remaining = isSource ? targetBytePos - SimpleMixer.nGetBytePos(nativePtr, isSource, bytePos) : SimpleMixer.nGetAvailBytes(nativePtr, isSource);
             }
+            if (remaining <= 0)
+                break;
+            long nanos = System.nanoTime();
+            if (remaining != lastRemaining) {
+                lastRemaining = remaining;
+                lastProgressNanos = nanos;
+            } else if (nanos - lastProgressNanos > stallNanos) {
+                logger.warn("Drain of " + deviceID + " not progressing, giving up with " + remaining + " bytes left");
+                break;
+            }
+            waitInIO(NO_DEADLINE);
         }
         drained = true;
     }
@@ -326,12 +608,44 @@ abstract class SimpleDataLine extends SimpleLine implements DataLine {
 
     @Override
     public long getLongFramePosition() {
+        return toLinePosition(getDeviceFramePosition());
+    }
+
+    /**
+     * @return frame position in device frames
+     */
+    protected final long getDeviceFramePosition() {
         long pos;
         synchronized (lockNative) {
             pos = SimpleMixer.nGetBytePos(nativePtr, isSource, bytePos);
         }
         if (pos < 0)
             pos = 0;
-        return (pos / getFormat().getFrameSize());
+        return pos / deviceFrameBytes;
+    }
+
+    /**
+     * @return line frame position of the device frame position
+     */
+    protected long toLinePosition(long deviceFrames) {
+        return toLineFrames(deviceFrames);
+    }
+
+    /**
+     * Device side of a line format: the device format (differs when converting), the hw format opened natively and the converter.
+     */
+    static final class DeviceConfig {
+        final AudioFormat format;
+        final AudioFormat deviceFormat;
+        final AudioFormat hwFormat;
+        @Nullable
+        final FormatConverter converter;
+
+        DeviceConfig(@Nonnull AudioFormat format, @Nonnull AudioFormat deviceFormat, @Nonnull AudioFormat hwFormat, @Nullable FormatConverter converter) {
+            this.format = format;
+            this.deviceFormat = deviceFormat;
+            this.hwFormat = hwFormat;
+            this.converter = converter;
+        }
     }
 }
@@ -1,20 +1,113 @@
 package com.cleansine.sound.provider;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.DataLine;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class SimpleDataLineInfo extends DataLine.Info {
     private final Map<AudioFormat, AudioFormat> hwFormatByFormat;
+    // precomputed for fast isFormatSupported(), used by DataLine.Info.matches() too
+    private final FormatIndex<AudioFormat> formatIndex = new FormatIndex<>();
+    private final FormatIndex<AudioFormat> hwFormatIndex = new FormatIndex<>();
+    // formats supported by the device directly
+    private final FormatIndex<AudioFormat> directFormatIndex = new FormatIndex<>();
+    private final AudioFormat[] directFormats;
+    // derived formats converted by the provider
+    private final FormatIndex<AudioFormat> deviceFormatIndex = new FormatIndex<>();
+    // memoized negotiation results by desired format
+    private final Map<NegotiatedFormat.Strategy, Map<AudioFormat, NegotiatedFormat>> negotiatedByStrategy = new EnumMap<>(NegotiatedFormat.Strategy.class);
+    private static final int MAX_NEGOTIATED_CACHE_SIZE = 256;
 
     public SimpleDataLineInfo(Class<?> lineClass, AudioFormat[] formats, int minBufferSize, int maxBufferSize, @Nonnull Map<AudioFormat, AudioFormat> hwFormatByFormat) {
+        this(lineClass, formats, minBufferSize, maxBufferSize, hwFormatByFormat, Collections.emptyMap());
+    }
+
+    /**
+     * @param deviceFormatByFormat device format for each of the formats converted by the provider
+     */
+    public SimpleDataLineInfo(Class<?> lineClass, AudioFormat[] formats, int minBufferSize, int maxBufferSize, @Nonnull Map<AudioFormat, AudioFormat> hwFormatByFormat,
+                              @Nonnull Map<AudioFormat, AudioFormat> deviceFormatByFormat) {
         super(lineClass, formats, minBufferSize, maxBufferSize);
         this.hwFormatByFormat = hwFormatByFormat;
+        List<AudioFormat> direct = new ArrayList<>(formats.length);
+        for (AudioFormat format : formats) {
+            if (format != null) {
+                formatIndex.put(format, format);
+                if (!deviceFormatByFormat.containsKey(format)) {
+                    directFormatIndex.put(format, format);
+                    direct.add(format);
+                }
+            }
+        }
+        this.directFormats = direct.toArray(new AudioFormat[0]);
+        // the keys are fully specified formats, matching is symmetric for fully specified requested formats
+        for (Map.Entry<AudioFormat, AudioFormat> entry : hwFormatByFormat.entrySet())
+            hwFormatIndex.put(entry.getKey(), entry.getValue());
+        for (Map.Entry<AudioFormat, AudioFormat> entry : deviceFormatByFormat.entrySet())
+            deviceFormatIndex.put(entry.getKey(), entry.getValue());
+        for (NegotiatedFormat.Strategy strategy : NegotiatedFormat.Strategy.values())
+            negotiatedByStrategy.put(strategy, new ConcurrentHashMap<>());
     }
 
     @Nonnull
     public Map<AudioFormat, AudioFormat> gethwFormatByFormat() {
         return hwFormatByFormat;
     }
+
+    @Override
+    public boolean isFormatSupported(AudioFormat format) {
+        return formatIndex.contains(format);
+    }
+
+    /**
+     * @return the cheapest supported format for the desired format, null if no fully specified format is supported
+     */
+    @Nullable
+    NegotiatedFormat negotiate(@Nonnull AudioFormat desiredFormat, @Nonnull NegotiatedFormat.Strategy strategy) {
+        if (SimpleMixerProvider.isFullySpecifiedFormat(desiredFormat) && directFormatIndex.contains(desiredFormat))
+            return new NegotiatedFormat(desiredFormat, desiredFormat, EnumSet.noneOf(NegotiatedFormat.Conversion.class), 0);
+        Map<AudioFormat, NegotiatedFormat> negotiatedByFormat = negotiatedByStrategy.get(strategy);
+        // AudioFormat has identity equals
+        AudioFormat key = new DistinctableAudioFormat(desiredFormat.getEncoding(), desiredFormat.getSampleRate(),
+                desiredFormat.getSampleSizeInBits(), desiredFormat.getChannels(), desiredFormat.getFrameSize(), desiredFormat.isBigEndian());
+        NegotiatedFormat negotiated = negotiatedByFormat.get(key);
+        if (negotiated == null) {
+            negotiated = FormatNegotiator.negotiate(desiredFormat, directFormats, strategy);
+            if (negotiated != null) {
+                if (negotiatedByFormat.size() >= MAX_NEGOTIATED_CACHE_SIZE)
+                    negotiatedByFormat.clear();
+                negotiatedByFormat.put(key, negotiated);
+            }
+        }
+        return negotiated;
+    }
+
+    /**
+     * @return formats supported by the device directly, without the formats converted by the provider
+     */
+    @Nonnull
+    AudioFormat[] getDirectFormats() {
+        return directFormats.clone();
+    }
+
+    /**
+     * @return device format to convert the fully specified format to/from, or null if the device supports the format directly
+     */
+    @Nullable
+    AudioFormat findDeviceFormat(@Nonnull AudioFormat format) {
+        if (directFormatIndex.contains(format))
+            return null;
+        return deviceFormatIndex.find(format);
+    }
+
+    /**
+     * @return hardware format to open the device with instead of the fully specified format, or null if the format is used directly
+     */
+    @Nullable
+    AudioFormat findHwFormat(@Nonnull AudioFormat format) {
+        return hwFormatIndex.find(format);
+    }
 }
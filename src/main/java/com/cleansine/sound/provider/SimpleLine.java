@@ -1,15 +1,16 @@
 package com.cleansine.sound.provider;
 
-import javax.sound.sampled.Control;
-import javax.sound.sampled.Line;
-import javax.sound.sampled.LineListener;
-import javax.sound.sampled.LineUnavailableException;
+import javax.annotation.Nonnull;
+import javax.sound.sampled.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 abstract class SimpleLine implements Line {
 
     protected final Line.Info info;
     SimpleMixer mixer;
     private volatile boolean isOpen;
+    private final CopyOnWriteArrayList<LineListener> listeners = new CopyOnWriteArrayList<>();
 
     protected SimpleLine(Line.Info info, SimpleMixer mixer) {
         this.info = info;
@@ -27,20 +28,57 @@ abstract class SimpleLine implements Line {
     }
 
     final void setOpen(boolean open) {
+        // queried before the monitor, the position query takes the native lock
+        long position = this.isOpen != open ? getListenedEventPosition() : AudioSystem.NOT_SPECIFIED;
         synchronized (this) {
-            if (this.isOpen != open)
-                this.isOpen = open;
+            if (this.isOpen == open)
+                return;
+            this.isOpen = open;
+            // posted in the monitor, the events are queued in the order of the state changes
+            sendEvent(open ? LineEvent.Type.OPEN : LineEvent.Type.CLOSE, position);
         }
     }
 
+    /**
+     * Listeners are notified in the dispatcher thread, see {@link LineEventDispatcher}.
+     */
     @Override
     public void addLineListener(LineListener listener) {
-        throw new UnsupportedOperationException("not implemented");
+        if (listener != null)
+            listeners.addIfAbsent(listener);
     }
 
     @Override
     public final void removeLineListener(LineListener listener) {
-        throw new UnsupportedOperationException("not implemented");
+        listeners.remove(listener);
+    }
+
+    @Nonnull
+    final List<LineListener> getLineListeners() {
+        return listeners;
+    }
+
+    /**
+     * Posts the event to the dispatcher, only if any listener is registered. Lock-free, called holding the monitor of
+     * the line state.
+     */
+    final void sendEvent(@Nonnull LineEvent.Type type, long position) {
+        if (!listeners.isEmpty())
+            LineEventDispatcher.post(new LineEvent(this, type, position));
+    }
+
+    /**
+     * @return event position, NOT_SPECIFIED without listeners
+     */
+    final long getListenedEventPosition() {
+        return listeners.isEmpty() ? AudioSystem.NOT_SPECIFIED : getEventPosition();
+    }
+
+    /**
+     * @return frame position reported in the events
+     */
+    long getEventPosition() {
+        return AudioSystem.NOT_SPECIFIED;
     }
 
     @Override
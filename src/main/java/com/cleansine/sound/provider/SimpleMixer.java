@@ -7,24 +7,92 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.sound.sampled.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
-final class SimpleMixer extends SimpleLine implements Mixer {
+public final class SimpleMixer extends SimpleLine implements Mixer {
     private static final Logger logger = LoggerFactory.getLogger(SimpleMixer.class);
+    // false after the native library turned out not to have nOpenWithPeriod
+    private static volatile boolean isOpenWithPeriodSupported = true;
+    // false after the native library turned out not to have nGetPeriodBytes
+    private static volatile boolean isGetPeriodBytesSupported = true;
     private final Mixer.Info mixerInfo;
-    private final SimpleDataLineInfo[] sourceLineInfos;
-    private final SimpleDataLineInfo[] targetLineInfos;
-
-    private boolean isOpenedExplicitely = false;
-    private boolean isStarted = false;
-    private final Vector<Line> sourceLines = new Vector<>();
-    private final Vector<Line> targetLines = new Vector<>();
+    // probed lazily on first query of the direction
+    private volatile SimpleDataLineInfo[] sourceLineInfos;
+    private volatile SimpleDataLineInfo[] targetLineInfos;
+    private final Object sourceInfosLock = new Object();
+    private final Object targetInfosLock = new Object();
+
+    private volatile boolean isOpenedExplicitely = false;
+    // lines started and not stopped yet
+    private final AtomicInteger runningLines = new AtomicInteger();
+    private final Set<Line> sourceLines = new CopyOnWriteArraySet<>();
+    private final Set<Line> targetLines = new CopyOnWriteArraySet<>();
+    // serializes only changes of the mixer open state, lifecycle calls of the lines lock the lines
+    private final Object stateLock = new Object();
+    private final NativeHandlePool handlePool;
 
     SimpleMixer(SimpleMixerInfo mInfo) {
         super(new Line.Info(Mixer.class), null);
         this.mixer = this;
         this.mixerInfo = mInfo;
-        this.sourceLineInfos = initLineInfos(true);
-        this.targetLineInfos = initLineInfos(false);
+        this.handlePool = new NativeHandlePool(mInfo.getDeviceID());
+    }
+
+    /**
+     * @return native handles of recently closed lines of this device
+     */
+    @Nonnull
+    NativeHandlePool getHandlePool() {
+        return handlePool;
+    }
+
+    @Nonnull
+    private SimpleDataLineInfo[] getSourceLineInfos() {
+        SimpleDataLineInfo[] infos = sourceLineInfos;
+        if (infos == null) {
+            synchronized (sourceInfosLock) {
+                infos = sourceLineInfos;
+                if (infos == null) {
+                    infos = initLineInfos(true);
+                    sourceLineInfos = infos;
+                }
+            }
+        }
+        return infos;
+    }
+
+    @Nonnull
+    private SimpleDataLineInfo[] getTargetLineInfos() {
+        SimpleDataLineInfo[] infos = targetLineInfos;
+        if (infos == null) {
+            synchronized (targetInfosLock) {
+                infos = targetLineInfos;
+                if (infos == null) {
+                    infos = initLineInfos(false);
+                    targetLineInfos = infos;
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Probes formats of both directions unless already probed. Used for parallel probing of all devices.
+     */
+    void probeFormats() {
+        getSourceLineInfos();
+        getTargetLineInfos();
+    }
+
+    // only source line infos can match info of these classes
+    private static boolean canMatchSourceLine(@Nonnull Line.Info info) {
+        return info.getLineClass().isAssignableFrom(SourceDataLine.class) || info.getLineClass().isAssignableFrom(Clip.class);
+    }
+
+    // only target line infos can match info of these classes
+    private static boolean canMatchTargetLine(@Nonnull Line.Info info) {
+        return info.getLineClass().isAssignableFrom(TargetDataLine.class);
     }
 
     @Nonnull
@@ -52,11 +120,25 @@ final class SimpleMixer extends SimpleLine implements Mixer {
         return false;
     }
 
-    @Nullable
-    private SimpleDataLineInfo[] createDataLineInfo(boolean isSource) {
+    @Nonnull
+    private List<AudioFormat> getDeviceFormats(boolean isSource) {
+        SimpleMixerInfo info = (SimpleMixerInfo) getMixerInfo();
+        String probeConfig = SimpleMixerProvider.getProbeConfig();
+        List<AudioFormat> cachedFormats = FormatsCache.getFormats(info, isSource, probeConfig);
+        if (cachedFormats != null) {
+            logger.debug("Using cached " + (isSource ? "source" : "target") + " formats of device " + getDeviceID());
+            return cachedFormats;
+        }
         Vector<AudioFormat> deviceFormats = new Vector<>();
         // filling the vector
         nGetFormats(getDeviceID(), isSource, deviceFormats);
+        FormatsCache.putFormats(info, isSource, probeConfig, deviceFormats);
+        return deviceFormats;
+    }
+
+    @Nullable
+    private SimpleDataLineInfo[] createDataLineInfo(boolean isSource) {
+        List<AudioFormat> deviceFormats = getDeviceFormats(isSource);
         List<AudioFormat> reportedDeviceFormats = new ArrayList<>(deviceFormats);
         if (!deviceFormats.isEmpty()) {
             // replacing combination 24 validbits/32 storebits with 32/32 to comply with AudioFormat contract for PCM encoding, remembering in line info
@@ -106,17 +188,22 @@ final class SimpleMixer extends SimpleLine implements Mixer {
                     logger.debug("Using modified 32bit format " + modifiedFormat + " instead of the hardware format " + format);
                 }
             }
-            AudioFormat[] formats = reportedDeviceFormats.stream()
+            AudioFormat[] deviceFormatsArray = reportedDeviceFormats.stream()
                     // removing duplicate values
                     .distinct()
                     .toArray(AudioFormat[]::new);
+            // formats converted by the provider follow the device formats
+            final Map<AudioFormat, AudioFormat> deviceFormatByFormat = DerivedFormats.create(deviceFormatsArray, isSource);
+            List<AudioFormat> allFormats = new ArrayList<>(Arrays.asList(deviceFormatsArray));
+            allFormats.addAll(deviceFormatByFormat.keySet());
+            AudioFormat[] formats = allFormats.toArray(new AudioFormat[0]);
             // using some minimum buffer size
             SimpleDataLineInfo[] infos = new SimpleDataLineInfo[(isSource ? 2 : 1)];
             if (isSource) {
-                infos[0] = new SimpleDataLineInfo(SourceDataLine.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat);
-                infos[1] = new SimpleDataLineInfo(Clip.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat);
+                infos[0] = new SimpleDataLineInfo(SourceDataLine.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat, deviceFormatByFormat);
+                infos[1] = new SimpleDataLineInfo(Clip.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat, deviceFormatByFormat);
             } else {
-                infos[0] = new SimpleDataLineInfo(TargetDataLine.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat);
+                infos[0] = new SimpleDataLineInfo(TargetDataLine.class, formats, 32, AudioSystem.NOT_SPECIFIED, hwFormatByFormat, deviceFormatByFormat);
             }
             return infos;
         } else
@@ -129,16 +216,16 @@ final class SimpleMixer extends SimpleLine implements Mixer {
         if (existingInfo != null) {
             int lineBufferSize = ((DataLine.Info) info).getMaxBufferSize();
 
-            AudioFormat lineFormat = getLastFullySpecifiedFormat(existingInfo);
+            AudioFormat lineFormat = getDefaultLineFormat(info, existingInfo);
             if (lineFormat != null) {
                 if (existingInfo.getLineClass().isAssignableFrom(SimpleClip.class)) {
-                    return new SimpleClip(existingInfo, lineFormat, lineBufferSize, this, existingInfo.gethwFormatByFormat());
+                    return new SimpleClip(existingInfo, lineFormat, lineBufferSize, this);
                 }
                 if (existingInfo.getLineClass().isAssignableFrom(SimpleSourceDataLine.class)) {
-                    return new SimpleSourceDataLine(existingInfo, lineFormat, lineBufferSize, this, existingInfo.gethwFormatByFormat());
+                    return new SimpleSourceDataLine(existingInfo, lineFormat, lineBufferSize, this);
                 }
                 if (existingInfo.getLineClass().isAssignableFrom(SimpleTargetDataLine.class)) {
-                    return new SimpleTargetDataLine(existingInfo, lineFormat, lineBufferSize, this, existingInfo.gethwFormatByFormat());
+                    return new SimpleTargetDataLine(existingInfo, lineFormat, lineBufferSize, this);
                 }
             } else {
                 throw new IllegalArgumentException("line info " + info + " has no supported formats");
@@ -147,9 +234,45 @@ final class SimpleMixer extends SimpleLine implements Mixer {
         throw new IllegalArgumentException("Unsupported line info: " + info);
     }
 
+    /**
+     * Negotiates the cheapest supported format for the desired format, in one call instead of trial open() attempts.
+     * NOT_SPECIFIED fields of the desired format accept any value.
+     *
+     * @param isSource true for SourceDataLine/Clip formats, false for TargetDataLine formats
+     * @return device format with the conversions it requires, null if the device supports no format in the direction
+     */
+    @Nullable
+    public NegotiatedFormat negotiateFormat(@Nonnull AudioFormat desiredFormat, boolean isSource, @Nonnull NegotiatedFormat.Strategy strategy) {
+        SimpleDataLineInfo[] infos = isSource ? getSourceLineInfos() : getTargetLineInfos();
+        if (infos.length == 0)
+            return null;
+        // all line infos of one direction share the formats
+        return infos[0].negotiate(desiredFormat, strategy);
+    }
+
+    /**
+     * @return the first requested format if fully specified, otherwise the best match of the requested format, otherwise the last fully specified format
+     */
+    @Nullable
+    private AudioFormat getDefaultLineFormat(@Nonnull Line.Info requestedInfo, @Nonnull SimpleDataLineInfo info) {
+        if (requestedInfo instanceof DataLine.Info) {
+            AudioFormat[] requestedFormats = ((DataLine.Info) requestedInfo).getFormats();
+            if (requestedFormats.length > 0 && requestedFormats[0] != null) {
+                AudioFormat requestedFormat = requestedFormats[0];
+                if (SimpleMixerProvider.isFullySpecifiedFormat(requestedFormat))
+                    // matched the info, i.e. supported
+                    return requestedFormat;
+                NegotiatedFormat negotiated = info.negotiate(requestedFormat, NegotiatedFormat.Strategy.BIT_PERFECT);
+                if (negotiated != null)
+                    return negotiated.getDeviceFormat();
+            }
+        }
+        return getLastFullySpecifiedFormat(info);
+    }
+
     @Nullable
     private AudioFormat getLastFullySpecifiedFormat(@Nonnull SimpleDataLineInfo info) {
-        AudioFormat[] supportedFormats = info.getFormats();
+        AudioFormat[] supportedFormats = info.getDirectFormats();
         if ((supportedFormats != null) && (supportedFormats.length != 0)) {
             for (int i = supportedFormats.length - 1; i >= 0; --i) {
                 AudioFormat format = supportedFormats[i];
@@ -200,24 +323,30 @@ final class SimpleMixer extends SimpleLine implements Mixer {
 
     @Override
     public Line.Info[] getSourceLineInfo() {
-        return Arrays.copyOf(sourceLineInfos, sourceLineInfos.length);
+        SimpleDataLineInfo[] infos = getSourceLineInfos();
+        return Arrays.copyOf(infos, infos.length);
     }
 
     @Override
     public Line.Info[] getTargetLineInfo() {
-        return Arrays.copyOf(targetLineInfos, targetLineInfos.length);
+        SimpleDataLineInfo[] infos = getTargetLineInfos();
+        return Arrays.copyOf(infos, infos.length);
     }
 
     @Override
     public Line.Info[] getSourceLineInfo(Line.Info info) {
-        return Arrays.stream(sourceLineInfos)
+        if (!canMatchSourceLine(info))
+            return new Line.Info[0];
+        return Arrays.stream(getSourceLineInfos())
                 .filter(info::matches)
                 .toArray(Line.Info[]::new);
     }
 
     @Override
     public Line.Info[] getTargetLineInfo(Line.Info info) {
-        return Arrays.stream(targetLineInfos)
+        if (!canMatchTargetLine(info))
+            return new Line.Info[0];
+        return Arrays.stream(getTargetLineInfos())
                 .filter(info::matches)
                 .toArray(Line.Info[]::new);
     }
@@ -229,16 +358,12 @@ final class SimpleMixer extends SimpleLine implements Mixer {
 
     @Override
     public Line[] getSourceLines() {
-        synchronized (sourceLines) {
-            return sourceLines.toArray(new Line[0]);
-        }
+        return sourceLines.toArray(new Line[0]);
     }
 
     @Override
     public Line[] getTargetLines() {
-        synchronized (targetLines) {
-            return targetLines.toArray(new Line[0]);
-        }
+        return targetLines.toArray(new Line[0]);
     }
 
     @Override
@@ -257,95 +382,98 @@ final class SimpleMixer extends SimpleLine implements Mixer {
     }
 
     @Override
-    public synchronized void open() {
+    public void open() {
         openLine(true);
     }
 
-    synchronized void openLine(boolean isExplicitely) {
-        if (!isOpen()) {
-            setOpen(true);
-            if (isExplicitely)
-                isOpenedExplicitely = true;
+    void openLine(boolean isExplicitely) {
+        synchronized (stateLock) {
+            if (!isOpen()) {
+                setOpen(true);
+                if (isExplicitely)
+                    isOpenedExplicitely = true;
+            }
         }
     }
 
-    synchronized void openLine(Line line) {
+    void openLine(Line line) {
         if (this.equals(line))
             // no action
             return;
 
-        if (isSourceLine(line.getLineInfo())) {
-            if (!sourceLines.contains(line)) {
-                openLine(false);
-                sourceLines.addElement(line);
-            }
-        } else if (isTargetLine(line.getLineInfo())) {
-            if (!targetLines.contains(line)) {
-                openLine(false);
-                targetLines.addElement(line);
-            }
-        } else {
+        Set<Line> lines;
+        if (isSourceLine(line.getLineInfo()))
+            lines = sourceLines;
+        else if (isTargetLine(line.getLineInfo()))
+            lines = targetLines;
+        else {
             logger.error("Unknown line received for AbstractMixer.open(Line): " + line);
+            return;
         }
+        // registered before opening the mixer, a concurrent closeLine() sees the mixer in use
+        if (lines.add(line))
+            openLine(false);
     }
 
-    synchronized void closeLine(Line line) {
+    void closeLine(Line line) {
         if (this.equals(line))
             // no action
             return;
 
-        sourceLines.removeElement(line);
-        targetLines.removeElement(line);
+        sourceLines.remove(line);
+        targetLines.remove(line);
 
-        if (sourceLines.isEmpty() && targetLines.isEmpty() && !isOpenedExplicitely) {
-            close();
+        synchronized (stateLock) {
+            if (sourceLines.isEmpty() && targetLines.isEmpty() && !isOpenedExplicitely && isOpen()) {
+                // no lines to close
+                setOpen(false);
+            }
         }
     }
 
     @Override
-    public synchronized void close() {
-        if (isOpen()) {
-            for (Line line : getSourceLines()) {
-                line.close();
-            }
+    public void close() {
+        // closing the lines outside of stateLock, each line locks itself and then calls closeLine()
+        for (Line line : getSourceLines()) {
+            line.close();
+        }
 
-            for (Line line : getTargetLines()) {
-                line.close();
-            }
+        for (Line line : getTargetLines()) {
+            line.close();
+        }
+        // explicit close releases the device
+        handlePool.closeAll();
+        synchronized (stateLock) {
             setOpen(false);
+            isOpenedExplicitely = false;
         }
-        isOpenedExplicitely = false;
     }
 
-    synchronized void start(Line line) {
+    void start(Line line) {
         if (this.equals(line))
             // no action
             return;
-
-        if (!isStarted) {
-            isStarted = true;
-        }
+        runningLines.incrementAndGet();
     }
 
-    synchronized void stopLine(Line line) {
+    void stopLine(Line line) {
         if (this.equals(line))
             // no action
             return;
-        // return if any other line is running
-        for (Line l : new Vector<>(sourceLines)) {
-            if (((SimpleDataLine) l).running && (!l.equals(line)))
-                return;
-        }
-        for (Line l : new Vector<>(targetLines)) {
-            if (((SimpleDataLine) l).running && (!l.equals(line)))
-                return;
-        }
+        runningLines.decrementAndGet();
+    }
 
-        isStarted = false;
+    /**
+     * @return lines started and not stopped yet
+     */
+    int getRunningLines() {
+        return runningLines.get();
     }
 
     boolean isSourceLine(Line.Info info) {
-        for (Line.Info i : sourceLineInfos) {
+        if (!canMatchSourceLine(info))
+            return false;
+        for (Line.Info i : getSourceLineInfos()) {
             if (info.matches(i))
                 return true;
         }
@@ -353,7 +481,9 @@ final class SimpleMixer extends SimpleLine implements Mixer {
     }
 
     boolean isTargetLine(Line.Info info) {
-        for (Line.Info i : targetLineInfos) {
+        if (!canMatchTargetLine(info))
+            return false;
+        for (Line.Info i : getTargetLineInfos()) {
             if (info.matches(i))
                 return true;
         }
@@ -362,19 +492,61 @@ final class SimpleMixer extends SimpleLine implements Mixer {
 
     @Nullable
     SimpleDataLineInfo getLineInfo(@Nonnull Line.Info info) {
-        for (SimpleDataLineInfo i : sourceLineInfos) {
-            if (info.matches(i))
-                return i;
+        if (canMatchSourceLine(info)) {
+            for (SimpleDataLineInfo i : getSourceLineInfos()) {
+                if (info.matches(i))
+                    return i;
+            }
         }
 
-        for (SimpleDataLineInfo i : targetLineInfos) {
-            if (info.matches(i))
-                return i;
+        if (canMatchTargetLine(info)) {
+            for (SimpleDataLineInfo i : getTargetLineInfos()) {
+                if (info.matches(i))
+                    return i;
+            }
         }
         return null;
     }
 
 
+    /**
+     * Opens with the requested period size if the native library supports it, otherwise the device chooses the period.
+     *
+     * @return pointer to native struct holding state or 0 (= NULL)
+     */
+    static long openWithPeriod(String deviceID, boolean isSource, int enc, int rate, int sampleSignBits,
+                               int frameBytes, int channels, boolean signed, boolean bigEndian, int bufferBytes, int periodBytes)
+            throws LineUnavailableException {
+        if (isOpenWithPeriodSupported) {
+            try {
+                return nOpenWithPeriod(deviceID, isSource, enc, rate, sampleSignBits, frameBytes, channels, signed, bigEndian, bufferBytes, periodBytes);
+            } catch (UnsatisfiedLinkError e) {
+                logger.info("Native library does not support nOpenWithPeriod, the device will choose the period");
+                isOpenWithPeriodSupported = false;
+            }
+        }
+        return nOpen(deviceID, isSource, enc, rate, sampleSignBits, frameBytes, channels, signed, bigEndian, bufferBytes);
+    }
+
+    static boolean isOpenWithPeriodSupported() {
+        return isOpenWithPeriodSupported;
+    }
+
+    /**
+     * @return period size of the native stream in bytes, NOT_SPECIFIED if the native library cannot tell
+     */
+    static int getPeriodBytes(long nativePtr, boolean isSource) {
+        if (isGetPeriodBytesSupported) {
+            try {
+                return nGetPeriodBytes(nativePtr, isSource);
+            } catch (UnsatisfiedLinkError e) {
+                logger.info("Native library does not support nGetPeriodBytes, the period size is not known");
+                isGetPeriodBytesSupported = false;
+            }
+        }
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
     static native void nGetFormats(String deviceID, boolean isSource, Vector formats);
 
     static native void nStart(long nativePtr, boolean isSource);
@@ -388,6 +560,16 @@ final class SimpleMixer extends SimpleLine implements Mixer {
                              int frameBytes, int channels, boolean signed, boolean bigEndian, int bufferBytes)
             throws LineUnavailableException;
 
+    /**
+     * nOpen with the period size, in newer native libraries only.
+     *
+     * @return pointer to native struct holding state or 0 (= NULL)
+     */
+    private static native long nOpenWithPeriod(String deviceID, boolean isSource, int enc, int rate, int sampleSignBits,
+                                               int frameBytes, int channels, boolean signed, boolean bigEndian, int bufferBytes,
+                                               int periodBytes)
+            throws LineUnavailableException;
+
     static native void nClose(long nativePtr, boolean isSource);
 
     static native int nRead(long nativePtr, byte[] bytes, int offset, int len);
@@ -398,6 +580,13 @@ final class SimpleMixer extends SimpleLine implements Mixer {
 
     static native int nGetAvailBytes(long nativePtr, boolean isSource);
 
+    /**
+     * In newer native libraries only.
+     *
+     * @return period size in bytes or value < 1 if not known
+     */
+    private static native int nGetPeriodBytes(long nativePtr, boolean isSource);
+
     static native void nDrain(long nativePtr);
 
     static native void nFlush(long nativePtr, boolean isSource);
@@ -10,16 +10,22 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Mixer;
 import javax.sound.sampled.spi.MixerProvider;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class SimpleMixerProvider extends MixerProvider {
     private static final Logger logger = LoggerFactory.getLogger(SimpleMixerProvider.class);
     private static final String LIBRARY_NAME = "csjsound";
-    private static boolean isNativeLibLoaded;
-    // all access synchronized, no need for concurrent version
-    private static final Map<String, SimpleMixerInfo> infosByDeviceID = Collections.synchronizedMap(new LinkedHashMap<>());
-    // all access synchronized, no need for concurrent version
-    private static final Map<SimpleMixerInfo, SimpleMixer> mixersByInfo = new ConcurrentHashMap<>();
+    private static volatile boolean isNativeLibLoaded;
+    // opt-in loading of the library and nInit in a background thread started by the first provider instance
+    private static final boolean isAsyncInit = Boolean.getBoolean("csjsoundAsyncInit");
+    // max. wait for the background init in getMixerInfo()/getMixer(), negative = until finished
+    private static final long asyncInitTimeoutMS = Long.getLong("csjsoundInitTimeoutMs", -1);
+    private static final Object asyncInitLock = new Object();
+    @Nullable
+    private static CompletableFuture<Void> asyncInit;
+    // immutable, replaced as a whole by a refresh, read without locking
+    private static volatile Devices devices = Devices.EMPTY;
 
     // defined in the native LIB
     private static final int LIB_LOG_LEVEL_ERROR = 0;
@@ -40,11 +46,16 @@ public final class SimpleMixerProvider extends MixerProvider {
     private static final int MAX_RATE_LIMIT = 384000;
     private static final int MAX_CHANNELS_LIMIT = 8;
 
+    // max. number of devices probed in parallel by probeAllFormats()
+    private static final int DEFAULT_PROBE_THREADS = 4;
+
     // using static arrays to make sure GC does not drop the arrays before native processes them
     @SuppressWarnings("FieldCanBeLocal")
     private static int[] rates;
     @SuppressWarnings("FieldCanBeLocal")
     private static int[] channels;
+    private static int maxRateLimit;
+    private static int maxChannelsLimit;
 
 
     private static int[] parsePropertyToIntArray(String propertyStr) throws NumberFormatException {
@@ -70,7 +81,11 @@ public final class SimpleMixerProvider extends MixerProvider {
 
 
     static {
-        isNativeLibLoaded = true;
+        if (!isAsyncInit)
+            isNativeLibLoaded = loadNativeLib();
+    }
+
+    private static boolean loadNativeLib() {
         try {
             String lib = LIBRARY_NAME + "_" + System.getProperty("os.arch");
             logger.debug("Loading dynlib " + lib);
@@ -141,55 +156,118 @@ public final class SimpleMixerProvider extends MixerProvider {
                 logger.info("Both default rates and default channels used, will use maximum combined limit: rate " + MAX_RATE_LIMIT + " vs. channels " + MAX_CHANNELS_LIMIT);
 
 
+            maxRateLimit = bothDefaults ? MAX_RATE_LIMIT : 0;
+            maxChannelsLimit = bothDefaults ? MAX_CHANNELS_LIMIT : 0;
             logger.debug("Calling nInit with libLogTarget " + libLogTarget + ", rates: " + Arrays.toString(rates) + ", channels: " + Arrays.toString(channels));
-            if (!nInit(libLogLevelID, libLogTarget, rates, channels, bothDefaults ? MAX_RATE_LIMIT : 0, bothDefaults ? MAX_CHANNELS_LIMIT : 0)) {
+            if (!nInit(libLogLevelID, libLogTarget, rates, channels, maxRateLimit, maxChannelsLimit)) {
                 throw new Exception("Initializing " + lib + " failed");
             }
+            return true;
         } catch (Throwable t) {
-            isNativeLibLoaded = false;
             logger.error("Error loading dynlib:" + t);
+            return false;
         }
     }
 
     public SimpleMixerProvider() {
+        if (isAsyncInit && !startAsyncInit().isDone())
+            // the background thread enumerates the devices
+            return;
         synchronized (SimpleMixerProvider.class) {
             if (isNativeLibLoaded)
                 init();
         }
     }
 
+    /**
+     * Starts loading the library and enumerating devices in a background thread, only once.
+     */
+    @Nonnull
+    private static CompletableFuture<Void> startAsyncInit() {
+        synchronized (asyncInitLock) {
+            if (asyncInit == null) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                asyncInit = future;
+                Thread thread = new Thread(() -> {
+                    try {
+                        isNativeLibLoaded = loadNativeLib();
+                        if (isNativeLibLoaded)
+                            init();
+                    } catch (Throwable t) {
+                        logger.error("Background init failed: " + t);
+                    } finally {
+                        future.complete(null);
+                    }
+                }, "csjsound init");
+                thread.setDaemon(true);
+                logger.debug("Starting background init of dynlib");
+                thread.start();
+            }
+            return asyncInit;
+        }
+    }
+
+    /**
+     * @return false if the background init has not finished within csjsoundInitTimeoutMs
+     */
+    private static boolean awaitAsyncInit() {
+        CompletableFuture<Void> future;
+        synchronized (asyncInitLock) {
+            future = asyncInit;
+        }
+        if (future == null || future.isDone())
+            return true;
+        try {
+            if (asyncInitTimeoutMS < 0)
+                future.get();
+            else
+                future.get(asyncInitTimeoutMS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            logger.warn("Background init not finished within " + asyncInitTimeoutMS + "ms, reporting no devices yet");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // never completed exceptionally
+            return true;
+        }
+    }
+
     private static void init() {
         synchronized (SimpleMixerProvider.class) {
             int cnt = nGetMixerCnt();
             if (cnt < 0)
                 // error
                 return;
-            if (infosByDeviceID.isEmpty() || cnt != infosByDeviceID.size()) {
+            if (devices.infos.length == 0 || cnt != devices.infos.length) {
                 updateInfoCaches(cnt);
             }
         }
     }
 
+    // called only by init(), the readers keep using the previous snapshot until the new one is published
     private static void updateInfoCaches(int cnt) {
         // keeping original infos and devices to avoid useless exceptions
-        Collection<SimpleMixerInfo> origInfos = infosByDeviceID.values();
-        HashMap<SimpleMixerInfo, SimpleMixer> mixersByInfoCopy = new HashMap<>(mixersByInfo);
-        infosByDeviceID.clear();
-        mixersByInfo.clear();
+        Devices orig = devices;
+        List<SimpleMixerInfo> origInfos = Arrays.asList(orig.infos);
+        Map<String, SimpleMixerInfo> infosByDeviceID = new LinkedHashMap<>();
         for (int i = 0; i < cnt; i++) {
             SimpleMixerInfo newInfo = nCreateMixerInfo(i);
             logger.debug("Found device " + newInfo.toMyString());
             SimpleMixerInfo origInfo = findOrigInfo(newInfo, origInfos);
-            if (origInfo != null) {
-                // using the original info/device
-                infosByDeviceID.put(origInfo.getDeviceID(), origInfo);
-                SimpleMixer mixer = mixersByInfoCopy.get(origInfo);
-                if (mixer != null)
-                    mixersByInfo.put(origInfo, mixer);
-            } else {
-                infosByDeviceID.put(newInfo.getDeviceID(), newInfo);
-            }
+            // using the original info/device if found
+            SimpleMixerInfo info = origInfo != null ? origInfo : newInfo;
+            infosByDeviceID.put(info.getDeviceID(), info);
+        }
+        Map<SimpleMixerInfo, SimpleMixer> mixersByInfo = new HashMap<>();
+        for (SimpleMixerInfo info : infosByDeviceID.values()) {
+            SimpleMixer mixer = orig.mixersByInfo.get(info);
+            // creating the mixer does not touch the device, formats are probed lazily
+            mixersByInfo.put(info, mixer != null ? mixer : new SimpleMixer(info));
         }
+        devices = new Devices(infosByDeviceID.values().toArray(new SimpleMixerInfo[0]), mixersByInfo);
     }
 
     @Nullable
@@ -203,30 +281,103 @@ public final class SimpleMixerProvider extends MixerProvider {
 
     @Override
     public Mixer.Info[] getMixerInfo() {
-        synchronized (SimpleMixerProvider.class) {
-            return infosByDeviceID.values().toArray(new SimpleMixerInfo[0]);
-        }
+        if (!awaitAsyncInit())
+            return new Mixer.Info[0];
+        return devices.infos.clone();
     }
 
     @Override
     public Mixer getMixer(@Nullable Mixer.Info info) {
-        synchronized (SimpleMixerProvider.class) {
-            if (info == null) {
-                // get first mixer with nonzero source lines
-                for (SimpleMixerInfo lInfo : infosByDeviceID.values()) {
-                    Mixer mixer = getMixerFor(lInfo);
-                    if (mixer.getSourceLineInfo().length > 0)
-                        // found
-                        return mixer;
+        if (!awaitAsyncInit())
+            throw new IllegalArgumentException("Mixer " + info + " not available, background init not finished yet");
+        Devices current = devices;
+        if (info == null) {
+            // get first mixer with nonzero source lines
+            for (SimpleMixerInfo lInfo : current.infos) {
+                Mixer mixer = current.mixersByInfo.get(lInfo);
+                if (mixer.getSourceLineInfo().length > 0)
+                    // found
+                    return mixer;
 
-                }
             }
-            if (info instanceof SimpleMixerInfo)
-                return getMixerFor((SimpleMixerInfo) info);
+        }
+        if (info != null) {
+            Mixer mixer = current.mixersByInfo.get(info);
+            if (mixer != null)
+                return mixer;
         }
         throw new IllegalArgumentException("Mixer " + info + "is not supported by this provider");
     }
 
+    /**
+     * Probes formats of all devices in both directions, independent devices in parallel.
+     * Formats are otherwise probed lazily per device and direction on first query, calling this method is useful
+     * before a full enumeration, e.g. AudioSystem.getSourceLineInfo(info) which queries every mixer.
+     * The number of parallel probes is limited by property csjsoundProbeThreads (default 4).
+     */
+    public static void probeAllFormats() {
+        Devices current = devices;
+        List<SimpleMixer> mixers = new ArrayList<>();
+        for (SimpleMixerInfo info : current.infos)
+            mixers.add(current.mixersByInfo.get(info));
+        if (mixers.isEmpty())
+            return;
+        // one write of the formats cache for all devices
+        FormatsCache.beginBatch();
+        try {
+            probeFormats(mixers);
+        } finally {
+            FormatsCache.endBatch();
+        }
+    }
+
+    private static void probeFormats(@Nonnull List<SimpleMixer> mixers) {
+        int threads = Math.min(mixers.size(), getProbeThreads());
+        if (threads <= 1) {
+            for (SimpleMixer mixer : mixers)
+                mixer.probeFormats();
+            return;
+        }
+        AtomicInteger threadCnt = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "csjsound format probe " + threadCnt.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(mixers.size());
+            for (SimpleMixer mixer : mixers) {
+                tasks.add(() -> {
+                    mixer.probeFormats();
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Probing device formats failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int getProbeThreads() {
+        String str = System.getProperty("csjsoundProbeThreads");
+        if (str != null && !str.isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(str.trim()));
+            } catch (NumberFormatException e) {
+                logger.error("Cannot parse csjsoundProbeThreads to int: " + str);
+            }
+        }
+        return DEFAULT_PROBE_THREADS;
+    }
+
     public static boolean isFullySpecifiedFormat(@Nonnull AudioFormat format) {
         return format.getSampleRate() != AudioSystem.NOT_SPECIFIED
                 && format.getSampleSizeInBits() != AudioSystem.NOT_SPECIFIED
@@ -234,14 +385,52 @@ public final class SimpleMixerProvider extends MixerProvider {
                 && format.getFrameSize() != AudioSystem.NOT_SPECIFIED;
     }
 
+    /**
+     * @return description of the rates/channels configuration passed to nInit, determines the formats reported by nGetFormats
+     */
+    @Nonnull
+    static String getProbeConfig() {
+        return Arrays.toString(rates) + "/" + Arrays.toString(channels) + "/" + maxRateLimit + "/" + maxChannelsLimit;
+    }
+
+    /**
+     * @return rates probed for the devices
+     */
     @Nonnull
-    private static SimpleMixer getMixerFor(SimpleMixerInfo info) {
-        SimpleMixer mixer = mixersByInfo.get(info);
-        if (mixer == null) {
-            mixer = new SimpleMixer(info);
-            mixersByInfo.put(info, mixer);
+    static int[] getProbeRates() {
+        return rates == null ? new int[0] : rates;
+    }
+
+    /**
+     * @return channel counts probed for the devices
+     */
+    @Nonnull
+    static int[] getProbeChannels() {
+        return channels == null ? new int[0] : channels;
+    }
+
+    /**
+     * @return true if the rate/channels combination is probed for the devices
+     */
+    static boolean isProbedCombination(int rate, int channelsCnt) {
+        // zero limits = no limit
+        return maxRateLimit == 0 || rate < maxRateLimit || channelsCnt < maxChannelsLimit;
+    }
+
+    /**
+     * Device infos and their mixers of one enumeration, never modified after publishing.
+     */
+    private static final class Devices {
+        static final Devices EMPTY = new Devices(new SimpleMixerInfo[0], Collections.emptyMap());
+
+        // in the device order
+        final SimpleMixerInfo[] infos;
+        final Map<SimpleMixerInfo, SimpleMixer> mixersByInfo;
+
+        Devices(@Nonnull SimpleMixerInfo[] infos, @Nonnull Map<SimpleMixerInfo, SimpleMixer> mixersByInfo) {
+            this.infos = infos;
+            this.mixersByInfo = Collections.unmodifiableMap(mixersByInfo);
         }
-        return mixer;
     }
 
     /**
@@ -3,31 +3,173 @@ package com.cleansine.sound.provider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-class SimpleSourceDataLine extends SimpleDataLine implements SourceDataLine {
+/**
+ * Besides the blocking {@link #write(byte[], int, int)} offers variants bounded by a timeout or non-blocking.
+ * {@link #changeFormat(AudioFormat)} switches the format of the open line, without a gap if the device format stays.
+ */
+public class SimpleSourceDataLine extends SimpleDataLine implements SourceDataLine {
     private static final Logger logger = LoggerFactory.getLogger(SimpleSourceDataLine.class);
 
     // if a write operation occurred in stopped state
     private volatile boolean writtenWhenStopped = false;
+    private static final int STAGING_FRAMES = 4096;
+    private static final long DEFAULT_COALESCING_DELAY_US = 5_000;
+    // runs the coalescing deadlines and async drains of all lines
+    @Nullable
+    private static ScheduledThreadPoolExecutor timerExecutor;
+    // converted bytes for the device, only when converting
+    private byte[] staging;
+    private int stagedOffset;
+    private int stagedLen;
+    // set by flush(), the writer drops the staged bytes
+    private volatile boolean discardStaged = false;
+    // line frames accepted by write() since open
+    private volatile long writtenFrames;
+    private volatile boolean isPeriodAligned = Boolean.getBoolean("csjsoundPeriodAlignedWrites");
+    // device bytes of one native write in the period-aligned mode, 0 = not aligned
+    private int alignBytes;
+    private volatile int coalescingFrames = Integer.getInteger("csjsoundWriteCoalescingFrames", 0);
+    private volatile long coalescingDelayMicros = Long.getLong("csjsoundWriteCoalescingDelayUs", DEFAULT_COALESCING_DELAY_US);
+    // device bytes collected from small writes, 0 = no coalescing
+    private int coalesceBytes;
+    private long coalesceDelayNanos;
+    // device bytes collected up to a whole period (period-aligned mode) or the coalescing threshold
+    @Nullable
+    private byte[] pending;
+    private int pendingLen;
+    // incremented when pending starts filling, identifies the deadline task
+    private long pendingGeneration;
+    private long pendingDeadlineNanos;
+    private volatile int startThresholdFrames;
+    private volatile int startThresholdMS = Integer.getInteger("csjsoundStartThresholdMs", 0);
+    // start() called, nStart waiting for the start threshold, guarded by lockNative
+    private volatile boolean deferredStart;
+    // device bytes
+    private int startThresholdBytes;
+    private final Queue<AsyncDrain> asyncDrains = new ConcurrentLinkedQueue<>();
+    // line rates switched by changeFormat() without reopening, the latest first, null if unchanged since open
+    @Nullable
+    private volatile RateSegment rateSegments;
 
 
-    SimpleSourceDataLine(DataLine.Info info, AudioFormat format, int bufferSize, SimpleMixer mixer, Map<AudioFormat, AudioFormat> hwFormatByFormat) {
-        super(info, mixer, format, bufferSize, mixer.getDeviceID(), true, hwFormatByFormat);
+    SimpleSourceDataLine(SimpleDataLineInfo info, AudioFormat format, int bufferSize, SimpleMixer mixer) {
+        super(info, mixer, format, bufferSize, mixer.getDeviceID(), true);
     }
 
     @Override
     void doOpen(final AudioFormat hwFormat, int bufferBytes) throws LineUnavailableException {
         super.doOpen(hwFormat, bufferBytes);
         writtenWhenStopped = false;
+        FormatConverter conv = converter;
+        staging = conv != null ? new byte[STAGING_FRAMES * conv.getDstFrameBytes()] : null;
+        stagedOffset = 0;
+        stagedLen = 0;
+        discardStaged = false;
+        writtenFrames = 0;
+        rateSegments = null;
+        alignBytes = 0;
+        if (isPeriodAligned) {
+            if (periodBytes > 0)
+                alignBytes = periodBytes;
+            else
+                logger.warn("Period size of the device not known, the writes are not period-aligned");
+        }
+        coalesceBytes = 0;
+        int frames = coalescingFrames;
+        if (alignBytes == 0 && frames > 0) {
+            // at most half of the buffer, the deadline at most quarter of the buffer time
+            coalesceBytes = (int) Math.max(1, Math.min(toDeviceFrames(frames), this.bufferBytes / deviceFrameBytes / 2)) * deviceFrameBytes;
+            coalesceDelayNanos = Math.max(1, Math.min(TimeUnit.MICROSECONDS.toNanos(coalescingDelayMicros), TimeUnit.MICROSECONDS.toNanos(getLatencyMicros()) / 4));
+        }
+        pending = alignBytes > 0 ? new byte[alignBytes] : (coalesceBytes > 0 ? new byte[coalesceBytes] : null);
+        pendingLen = 0;
+    }
+
+    /**
+     * Coalescing mode: writes smaller than thresholdFrames are collected and written to the device in one native call
+     * when reaching the threshold, or at the latest maxDelayMicros after the first collected frame. Larger writes go to
+     * the device directly. Reduces native calls for producers of tiny blocks, at most maxDelayMicros of extra latency.
+     * Ignored in the period-aligned mode. Applies from the next open(), defaults by properties
+     * csjsoundWriteCoalescingFrames (0 = off) and csjsoundWriteCoalescingDelayUs.
+     *
+     * @param thresholdFrames 0 = no coalescing
+     */
+    public void setWriteCoalescing(int thresholdFrames, long maxDelayMicros) {
+        if (thresholdFrames < 0 || maxDelayMicros <= 0)
+            throw new IllegalArgumentException("Invalid coalescing threshold " + thresholdFrames + " frames or delay " + maxDelayMicros + "us");
+        this.coalescingFrames = thresholdFrames;
+        this.coalescingDelayMicros = maxDelayMicros;
+    }
+
+    public boolean isWriteCoalescing() {
+        return coalesceBytes > 0;
+    }
+
+    /**
+     * Period-aligned mode: the native writes are whole periods (see {@link #getPeriodBytes()}), written when the device
+     * has room for the whole period. Larger writes are split into periods, smaller writes are collected up to a period.
+     * Fewer and larger native writes mean fewer wakeups. Applies from the next open(), default by property
+     * csjsoundPeriodAlignedWrites.
+     */
+    public void setPeriodAlignedWrites(boolean isPeriodAligned) {
+        this.isPeriodAligned = isPeriodAligned;
+    }
+
+    public boolean isPeriodAlignedWrites() {
+        return alignBytes > 0;
+    }
+
+    /**
+     * Start threshold in frames: after start() the native stream is started only when this many frames are queued
+     * (or at drain()), like the ALSA start_threshold. Avoids the underrun of lines started with little data, isActive()
+     * and the frame position reflect the real start. Capped one period below the buffer size, a full buffer starts the
+     * stream anyway. 0 = started immediately. Applies from the next start().
+     */
+    public void setStartThresholdFrames(int frames) {
+        this.startThresholdFrames = Math.max(0, frames);
+        this.startThresholdMS = 0;
+    }
+
+    /**
+     * Start threshold in milliseconds, see {@link #setStartThresholdFrames(int)}. Default by property csjsoundStartThresholdMs.
+     */
+    public void setStartThresholdMillis(int ms) {
+        this.startThresholdMS = Math.max(0, ms);
+        this.startThresholdFrames = 0;
+    }
+
+    /**
+     * @return true if start() was called and the native stream waits for the start threshold
+     */
+    public boolean isStartDeferred() {
+        return deferredStart;
     }
 
     @Override
     void doStart() {
+        int thresholdBytes = getStartThresholdBytes();
+        if (thresholdBytes > 0 && getQueuedBytes() < thresholdBytes) {
+            startThresholdBytes = thresholdBytes;
+            synchronized (lockNative) {
+                deferredStart = true;
+            }
+            // writes fill the buffer and start the native stream at the threshold
+            inIO = true;
+            logger.debug("Deferring start until " + thresholdBytes + " bytes are queued");
+            return;
+        }
         super.doStart();
         if (writtenWhenStopped) {
             setStarted(true);
@@ -35,65 +177,629 @@ class SimpleSourceDataLine extends SimpleDataLine implements SourceDataLine {
         }
     }
 
+    @Override
+    void stopNative() {
+        synchronized (lockNative) {
+            if (deferredStart) {
+                // never started
+                deferredStart = false;
+                return;
+            }
+            super.stopNative();
+        }
+    }
+
     @Override
     void doStop() {
         super.doStop();
         writtenWhenStopped = false;
     }
 
+    // device bytes
+    private int getStartThresholdBytes() {
+        long frames = startThresholdFrames;
+        int ms = startThresholdMS;
+        if (ms > 0)
+            frames = (long) (getFormat().getFrameRate() * ms / 1000);
+        if (frames <= 0)
+            return 0;
+        // below the full buffer, the writes can always reach it
+        int period = periodBytes;
+        int maxBytes = period > 0 && period < bufferBytes ? bufferBytes - period : bufferBytes - bufferBytes / 4;
+        maxBytes = Math.max(deviceFrameBytes, maxBytes / deviceFrameBytes * deviceFrameBytes);
+        return (int) Math.min(toDeviceFrames(frames) * deviceFrameBytes, maxBytes);
+    }
+
+    // device bytes queued in the native buffer
+    private int getQueuedBytes() {
+        synchronized (lockNative) {
+            return nativePtr == 0 ? 0 : bufferBytes - SimpleMixer.nGetAvailBytes(nativePtr, isSource);
+        }
+    }
+
+    // starts the deferred native stream if queued enough or forced
+    private void startDeferred(boolean isForced) {
+        if (!deferredStart || (!isForced && getQueuedBytes() < startThresholdBytes))
+            return;
+        synchronized (lockNative) {
+            // not stopped meanwhile
+            if (!deferredStart)
+                return;
+            deferredStart = false;
+            SimpleMixer.nStart(nativePtr, isSource);
+            setStarted(true);
+            setActive(true);
+        }
+        logger.debug("Started at the start threshold");
+    }
+
     public int write(byte[] bytes, int offset, int len) {
-        synchronized (this) {
-            logger.trace("Starting to write " + len + " bytes");
+        return write(bytes, offset, len, NO_DEADLINE);
+    }
+
+    /**
+     * Writes like {@link #write(byte[], int, int)} but waits for free buffer space at most the timeout.
+     *
+     * @param timeout 0 or negative = writes only what fits now, Long.MAX_VALUE = no limit
+     * @return bytes written, possibly fewer than len
+     */
+    public int write(byte[] bytes, int offset, int len, long timeout, TimeUnit unit) {
+        return write(bytes, offset, len, toDeadline(timeout, unit));
+    }
+
+    /**
+     * @return bytes written without waiting, possibly fewer than len
+     */
+    public int writeNonBlocking(byte[] bytes, int offset, int len) {
+        return write(bytes, offset, len, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private int write(byte[] bytes, int offset, int len, long deadlineNanos) {
+        if (!lockIO(deadlineNanos))
+            // another write holds the line until the deadline
+            return 0;
+        try {
+            return doWrite(bytes, offset, len, deadlineNanos);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    // holding ioLock
+    private int doWrite(byte[] bytes, int offset, int len, long deadlineNanos) {
+        logger.trace("Starting to write " + len + " bytes");
 //            try {
 //                this.os.write(bytes, offset, len);
 //                this.os.flush();
 //            } catch (Exception e) {
 //                logger.error("Error writing to file", e);
 //            }
-            flushing = false;
+        flushing = false;
+        if (len == 0)
+            return 0;
+        if (len % getFormat().getFrameSize() != 0)
+            throw new IllegalArgumentException("Requesting to write non-integral number of frames (" + len + " bytes, " + "frameBytes = " + getFormat().getFrameSize() + " bytes)");
+
+        if (!active && inIO && !deferredStart) {
+            setActive(true);
+            setStarted(true);
+        }
+        int written;
+        if (converter == null)
+            // bytes staged before a format change go first
+            written = writeStaged(deadlineNanos) ? writeDevice(bytes, offset, len, deadlineNanos) : 0;
+        else
+            written = writeConverted(bytes, offset, len, deadlineNanos);
+        if (written > 0 && !inIO)
+            writtenWhenStopped = true;
+        writtenFrames += written / getFormat().getFrameSize();
+        logger.trace("Wrote total " + written + " bytes");
+        return written;
+    }
+
+    /**
+     * Converts the line bytes through the staging buffer, the staged bytes not accepted by the device are written first in the next call.
+     *
+     * @return line bytes consumed
+     */
+    private int writeConverted(byte[] bytes, int offset, int len, long deadlineNanos) {
+        FormatConverter conv = converter;
+        int lineFrameBytes = conv.getSrcFrameBytes();
+        int stagingFrames = staging.length / conv.getDstFrameBytes();
+        int written = 0;
+        while (!flushing) {
+            if (!writeStaged(deadlineNanos))
+                // device full and not running or deadline passed
+                break;
             if (len == 0)
-                return 0;
-            if (len % getFormat().getFrameSize() != 0)
-                throw new IllegalArgumentException("Requesting to write non-integral number of frames (" + len + " bytes, " + "frameBytes = " + getFormat().getFrameSize() + " bytes)");
-
-            if (!active && inIO) {
-                setActive(true);
-                setStarted(true);
-            }
-            int written = 0;
-            while (!flushing) {
-                int writtenInLoop;
-                logger.trace("In-loop: trying to write " + len + " bytes");
-                synchronized (lockNative) {
-                    writtenInLoop = SimpleMixer.nWrite(nativePtr, bytes, offset, len);
-                    if (writtenInLoop < 0)
-                        // error in native layer
-                        break;
-                    bytePos += writtenInLoop;
-                    if (writtenInLoop > 0)
-                        drained = false;
+                break;
+            int frames = Math.min(len / lineFrameBytes, conv.getMaxSrcFrames(stagingFrames));
+            stagedLen = conv.convert(bytes, offset, frames, staging, 0, stagingFrames);
+            stagedOffset = 0;
+            int consumed = frames * lineFrameBytes;
+            offset += consumed;
+            len -= consumed;
+            written += consumed;
+        }
+        return written;
+    }
+
+    /**
+     * @return true if all staged bytes were written
+     */
+    private boolean writeStaged(long deadlineNanos) {
+        if (discardStaged) {
+            discardStaged = false;
+            stagedLen = 0;
+            pendingLen = 0;
+            FormatConverter conv = converter;
+            if (conv != null)
+                conv.reset();
+        }
+        if (stagedLen > 0) {
+            int deviceWritten = writeDevice(staging, stagedOffset, stagedLen, deadlineNanos);
+            if (deviceWritten > 0) {
+                stagedOffset += deviceWritten;
+                stagedLen -= deviceWritten;
+            }
+        }
+        return stagedLen == 0;
+    }
+
+    // device bytes accepted, in the period-aligned/coalescing mode incl. bytes collected in pending
+    private int writeDevice(byte[] bytes, int offset, int len, long deadlineNanos) {
+        if (alignBytes > 0)
+            return writeAligned(bytes, offset, len, deadlineNanos);
+        if (coalesceBytes > 0)
+            return writeCoalesced(bytes, offset, len, deadlineNanos);
+        return writeToDevice(bytes, offset, len, deadlineNanos);
+    }
+
+    /**
+     * Collects small writes in pending, written at the threshold or the deadline. Large writes go directly, after pending.
+     *
+     * @return device bytes accepted
+     */
+    private int writeCoalesced(byte[] bytes, int offset, int len, long deadlineNanos) {
+        if (pendingLen > 0 && (pendingLen + len > coalesceBytes || System.nanoTime() - pendingDeadlineNanos >= 0)) {
+            writePending(deadlineNanos);
+            if (pendingLen > 0) {
+                // device full, keeping the order
+                int n = Math.min(coalesceBytes - pendingLen, len);
+                System.arraycopy(bytes, offset, pending, pendingLen, n);
+                pendingLen += n;
+                return n;
+            }
+        }
+        if (len >= coalesceBytes)
+            return writeToDevice(bytes, offset, len, deadlineNanos);
+        if (pendingLen == 0)
+            startPending();
+        System.arraycopy(bytes, offset, pending, pendingLen, len);
+        pendingLen += len;
+        if (pendingLen == coalesceBytes)
+            writePending(deadlineNanos);
+        return len;
+    }
+
+    private void startPending() {
+        long generation = ++pendingGeneration;
+        pendingDeadlineNanos = System.nanoTime() + coalesceDelayNanos;
+        scheduleDeadline(generation, coalesceDelayNanos);
+    }
+
+    private void scheduleDeadline(long generation, long delayNanos) {
+        getTimerExecutor().schedule(() -> writeDuePending(generation), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // deadline of the collected bytes, the producer has not written meanwhile
+    private void writeDuePending(long generation) {
+        if (!ioLock.tryLock()) {
+            // not waiting for the running write() in the shared executor thread, it writes the due bytes itself
+            scheduleDeadline(generation, coalesceDelayNanos);
+            return;
+        }
+        try {
+            if (generation != pendingGeneration || pendingLen == 0 || discardStaged)
+                return;
+            // not waiting in the shared executor thread
+            writePending(System.nanoTime());
+            if (pendingLen > 0)
+                // device full, trying later
+                scheduleDeadline(generation, coalesceDelayNanos);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    @Nonnull
+    private static synchronized ScheduledThreadPoolExecutor getTimerExecutor() {
+        if (timerExecutor == null) {
+            timerExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "csjsound line timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timerExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return timerExecutor;
+    }
+
+    /**
+     * Writes whole periods, directly from bytes or collected in pending.
+     *
+     * @return device bytes accepted
+     */
+    private int writeAligned(byte[] bytes, int offset, int len, long deadlineNanos) {
+        int period = alignBytes;
+        int accepted = 0;
+        while (!flushing) {
+            if (pendingLen == period) {
+                int written = writePeriod(pending, 0, period, deadlineNanos);
+                if (written < period) {
+                    System.arraycopy(pending, written, pending, 0, period - written);
+                    pendingLen -= written;
+                    break;
                 }
-                logger.trace("In-loop: wrote " + writtenInLoop + " bytes");
-                len -= writtenInLoop;
-                written += writtenInLoop;
-                if (inIO && len > 0) {
-                    offset += writtenInLoop;
-                    synchronized (lock) {
-                        try {
-                            logger.trace("Waiting in write loop for " + checkTimeMS + "ms");
-                            lock.wait(checkTimeMS);
-                        } catch (InterruptedException ignored) {
-                        }
-                    }
-                } else {
+                pendingLen = 0;
+            }
+            if (len == 0)
+                break;
+            if (pendingLen > 0 || len < period) {
+                int n = Math.min(period - pendingLen, len);
+                System.arraycopy(bytes, offset, pending, pendingLen, n);
+                pendingLen += n;
+                offset += n;
+                len -= n;
+                accepted += n;
+            } else {
+                // no copy of whole periods
+                int written = writePeriod(bytes, offset, period, deadlineNanos);
+                offset += written;
+                len -= written;
+                accepted += written;
+                if (written < period)
                     break;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Waits until the device has room for the whole period, while running and until the deadline.
+     *
+     * @return bytes written, fewer than len only if not running, flushed or the deadline passed
+     */
+    private int writePeriod(byte[] bytes, int offset, int len, long deadlineNanos) {
+        while (!flushing) {
+            int avail;
+            synchronized (lockNative) {
+                avail = SimpleMixer.nGetAvailBytes(nativePtr, isSource);
+            }
+            if (avail >= len)
+                return writeToDevice(bytes, offset, len, deadlineNanos);
+            if (deferredStart)
+                // no room for another period, queued enough
+                startDeferred(true);
+            if (!inIO) {
+                // stopped, filling the buffer for the start
+                return writeToDevice(bytes, offset, Math.max(0, avail), deadlineNanos);
+            }
+            if (!waitInIO(deadlineNanos))
+                break;
+        }
+        return 0;
+    }
+
+    // writes the bytes collected in pending, holding ioLock
+    private void writePending(long deadlineNanos) {
+        if (pendingLen > 0) {
+            int written = writeToDevice(pending, 0, pendingLen, deadlineNanos);
+            System.arraycopy(pending, written, pending, 0, pendingLen - written);
+            pendingLen -= written;
+        }
+    }
+
+    /**
+     * Writes to the native buffer, waiting for free space while running, until the deadline.
+     *
+     * @return bytes written
+     */
+    private int writeToDevice(byte[] bytes, int offset, int len, long deadlineNanos) {
+        int written = 0;
+        while (!flushing) {
+            int writtenInLoop;
+            logger.trace("In-loop: trying to write " + len + " bytes");
+            synchronized (lockNative) {
+                writtenInLoop = SimpleMixer.nWrite(nativePtr, bytes, offset, len);
+                if (writtenInLoop < 0)
+                    // error in native layer
+                    break;
+                bytePos += writtenInLoop;
+                if (writtenInLoop > 0)
+                    drained = false;
+            }
+            if (deferredStart)
+                // a full buffer starts the stream below the threshold, the write would wait forever otherwise
+                startDeferred(writtenInLoop == 0 && len > 0);
+            logger.trace("In-loop: wrote " + writtenInLoop + " bytes");
+            len -= writtenInLoop;
+            written += writtenInLoop;
+            if (inIO && len > 0) {
+                offset += writtenInLoop;
+                if (!waitInIO(deadlineNanos))
+                    break;
+            } else {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return line frames accepted by write() since open, the frame position at which the next written frame plays
+     */
+    long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Switches the open line to another format, e.g. at a track boundary. If the device and hw formats stay the same,
+     * only the conversion is replaced (also to another line rate, the device resampling) and the native stream keeps
+     * playing without a gap, the frame position continues in frames of the new rate from the first frame written in
+     * the new format. Otherwise the queued frames are drained and the line is reopened with the same buffer time
+     * (the frame position restarts at 0) and restarted if it was running.
+     *
+     * @return true if the native stream was kept
+     */
+    public boolean changeFormat(@Nonnull AudioFormat newFormat) throws LineUnavailableException {
+        return changeFormat(resolveDeviceConfig(newFormat));
+    }
+
+    boolean changeFormat(@Nonnull DeviceConfig config) throws LineUnavailableException {
+        synchronized (lifecycleLock) {
+            if (!isOpen())
+                throw new IllegalStateException("Line is not open");
+            AudioFormat oldFormat = getFormat();
+            // waiting for a running write() to finish
+            ioLock.lock();
+            try {
+                if (isSameDeviceConfig(config)) {
+                    // the staged bytes are in the unchanged device format and stay
+                    finishConversion();
+                    if (config.format.getFrameRate() != oldFormat.getFrameRate())
+                        addRateSegment(oldFormat.getFrameRate(), config.format.getFrameRate());
+                    FormatConverter conv = config.converter;
+                    alignConverter(conv, config.format);
+                    if (conv != null && staging == null)
+                        staging = new byte[STAGING_FRAMES * conv.getDstFrameBytes()];
+                    converter = conv;
+                    format = config.format;
+                    return true;
                 }
+            } finally {
+                ioLock.unlock();
+            }
+            logger.debug("Reopening for format " + config.format + ", device format changes");
+            int bufferFrames = (int) (getBufferSize() / oldFormat.getFrameSize() * (double) config.format.getFrameRate() / oldFormat.getFrameRate());
+            boolean wasRunning = running;
+            drain();
+            close();
+            // the config is already resolved, possibly prepared ahead
+            open(config, bufferFrames * config.format.getFrameSize());
+            if (wasRunning)
+                start();
+            return false;
+        }
+    }
+
+    // the frames written from now on play at the new line rate, holding ioLock after finishConversion()
+    private void addRateSegment(float oldRate, float newRate) {
+        RateSegment current = rateSegments;
+        if (current == null)
+            current = new RateSegment(0, 0, oldRate, null);
+        // the segments before the one playing are not needed anymore
+        long played = getDeviceFramePosition();
+        for (RateSegment segment = current; segment != null; segment = segment.previous) {
+            if (segment.deviceFrames <= played) {
+                segment.previous = null;
+                break;
             }
-            if (written > 0 && !inIO)
-                writtenWhenStopped = true;
-            logger.trace("Wrote total " + written + " bytes");
-            return written;
         }
+        // staged and collected bytes of the old format are written before the new format
+        long deviceFrames = (bytePos + pendingLen + stagedLen) / deviceFrameBytes;
+        rateSegments = new RateSegment(deviceFrames, writtenFrames, newRate, current);
     }
 
+    @Override
+    protected long toLinePosition(long deviceFrames) {
+        RateSegment segment = rateSegments;
+        if (segment == null)
+            return super.toLinePosition(deviceFrames);
+        while (segment.previous != null && deviceFrames < segment.deviceFrames)
+            segment = segment.previous;
+        return segment.lineFrames + (long) ((deviceFrames - segment.deviceFrames) * (double) segment.lineRate / deviceFrameRate);
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        if (rateSegments == null)
+            return super.getMicrosecondPosition();
+        // the line frames played at different rates
+        return (long) (getDeviceFramePosition() / (double) deviceFrameRate * 1_000_000d);
+    }
+
+    // writes the staged bytes and the frames held back by the resampler, holding ioLock
+    private void finishConversion() {
+        FormatConverter conv = converter;
+        writeStaged(NO_DEADLINE);
+        if (conv != null && conv.isResampling()) {
+            // the resampler holds back the last frames as its lookahead, staged behind the bytes a stopped line did not take
+            if (stagedOffset > 0) {
+                System.arraycopy(staging, stagedOffset, staging, 0, stagedLen);
+                stagedOffset = 0;
+            }
+            int frameBytes = conv.getDstFrameBytes();
+            int neededBytes = stagedLen + conv.getMaxTailFrames() * frameBytes;
+            if (neededBytes > staging.length)
+                // only at the end of a stream
+                staging = Arrays.copyOf(staging, neededBytes);
+            stagedLen += conv.convertTail(staging, stagedLen, (staging.length - stagedLen) / frameBytes);
+            writeStaged(NO_DEADLINE);
+        }
+    }
+
+    @Override
+    public void drain() {
+        if (staging != null || pending != null) {
+            ioLock.lock();
+            try {
+                finishConversion();
+                writePending(NO_DEADLINE);
+            } finally {
+                ioLock.unlock();
+            }
+        }
+        // playing the rest below the threshold
+        startDeferred(true);
+        super.drain();
+    }
+
+    @Override
+    public int available() {
+        int a = super.available();
+        // discarded by the next write after flush()
+        int pendingBytes = discardStaged ? 0 : pendingLen;
+        // collected bytes count as written
+        return pendingBytes > 0 ? (int) Math.max(0, a - toLineBytes(pendingBytes)) : a;
+    }
+
+    /**
+     * Like {@link #drain()} but without blocking the caller: the future completes when the last frame written so far
+     * has played, monitored by short position queries in a shared timer thread, the position, available() and flush()
+     * stay responsive meanwhile. Completes immediately in a stopped line, like drain(). flush() and close() cancel it.
+     */
+    @Nonnull
+    public CompletableFuture<Void> drainAsync() {
+        AsyncDrain drain = new AsyncDrain();
+        asyncDrains.add(drain);
+        scheduleAsyncDrain(drain, 0);
+        return drain.future;
+    }
+
+    private void scheduleAsyncDrain(@Nonnull AsyncDrain drain, long delayNanos) {
+        getTimerExecutor().schedule(() -> pollAsyncDrain(drain), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void pollAsyncDrain(@Nonnull AsyncDrain drain) {
+        try {
+            if (drain.future.isDone())
+                return;
+            if (!isOpen()) {
+                drain.future.cancel(false);
+                return;
+            }
+            long retryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, checkTimeMS));
+            if (drain.targetBytePos < 0) {
+                if (!writeCollected(drain)) {
+                    scheduleAsyncDrain(drain, retryNanos);
+                    return;
+                }
+                // playing the rest below the threshold
+                startDeferred(true);
+            }
+            if (!inIO) {
+                drain.future.complete(null);
+                return;
+            }
+            long pos;
+            synchronized (lockNative) {
+                if (nativePtr == 0) {
+                    drain.future.cancel(false);
+                    return;
+                }
+                pos = SimpleMixer.nGetBytePos(nativePtr, isSource, bytePos);
+            }
+            long remaining = drain.targetBytePos - pos;
+            if (remaining <= 0) {
+                drain.future.complete(null);
+                return;
+            }
+            // waking up at the expected end, at most checkTimeMS later
+            long remainingNanos = (long) (remaining / deviceFrameBytes * 1_000_000_000.0 / deviceFrameRate);
+            scheduleAsyncDrain(drain, Math.max(TimeUnit.MILLISECONDS.toNanos(1), Math.min(remainingNanos, retryNanos)));
+        } catch (RuntimeException e) {
+            drain.future.completeExceptionally(e);
+        } finally {
+            if (drain.future.isDone())
+                asyncDrains.remove(drain);
+        }
+    }
+
+    /**
+     * Writes the staged/collected bytes without waiting, sets the drain target when all are written.
+     *
+     * @return true if all written, false also if a write() holds the line
+     */
+    private boolean writeCollected(@Nonnull AsyncDrain drain) {
+        // not waiting for the running write() in the shared timer thread
+        if (!ioLock.tryLock())
+            return false;
+        try {
+            long now = System.nanoTime();
+            if (!writeStaged(now))
+                return false;
+            FormatConverter conv = converter;
+            if (!drain.isTailConverted && conv != null && conv.isResampling()) {
+                // the resampler holds back the last frames as its lookahead
+                stagedLen = conv.convertTail(staging, 0, staging.length / conv.getDstFrameBytes());
+                stagedOffset = 0;
+                drain.isTailConverted = true;
+                if (!writeStaged(now))
+                    return false;
+            }
+            writePending(now);
+            if (pendingLen > 0)
+                return false;
+            drain.targetBytePos = bytePos;
+            return true;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        discardStaged = true;
+        super.flush();
+        AsyncDrain drain;
+        while ((drain = asyncDrains.poll()) != null)
+            drain.future.cancel(false);
+    }
+
+    /**
+     * Line frames from the device frame position on play at the line rate.
+     */
+    private static final class RateSegment {
+        private final long deviceFrames;
+        private final long lineFrames;
+        private final float lineRate;
+        // cut when no longer playing
+        @Nullable
+        private RateSegment previous;
+
+        RateSegment(long deviceFrames, long lineFrames, float lineRate, @Nullable RateSegment previous) {
+            this.deviceFrames = deviceFrames;
+            this.lineFrames = lineFrames;
+            this.lineRate = lineRate;
+            this.previous = previous;
+        }
+    }
+
+    private static final class AsyncDrain {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        // device bytes, -1 until the staged/collected bytes are written
+        private volatile long targetBytePos = -1;
+        private volatile boolean isTailConverted;
+    }
 }
@@ -3,66 +3,146 @@ package com.cleansine.sound.provider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nonnull;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-final class SimpleTargetDataLine extends SimpleDataLine implements TargetDataLine {
+/**
+ * Besides the blocking {@link #read(byte[], int, int)} offers variants bounded by a timeout or non-blocking.
+ */
+public final class SimpleTargetDataLine extends SimpleDataLine implements TargetDataLine {
 
     private static final Logger logger = LoggerFactory.getLogger(SimpleTargetDataLine.class);
+    private static final int STAGING_FRAMES = 4096;
+    // device bytes to convert, only when converting
+    private byte[] staging;
+    // set by flush(), the reader drops the frames buffered in the converter
+    private volatile boolean discardConverted = false;
 
-    SimpleTargetDataLine(DataLine.Info info, AudioFormat format, int bufferSize, SimpleMixer mixer, @Nonnull  Map<AudioFormat, AudioFormat> hwFormatByFormat) {
-        super(info, mixer, format, bufferSize, mixer.getDeviceID(), false, hwFormatByFormat);
+    SimpleTargetDataLine(SimpleDataLineInfo info, AudioFormat format, int bufferSize, SimpleMixer mixer) {
+        super(info, mixer, format, bufferSize, mixer.getDeviceID(), false);
+    }
+
+    @Override
+    void doOpen(final AudioFormat hwFormat, int bufferBytes) throws LineUnavailableException {
+        super.doOpen(hwFormat, bufferBytes);
+        FormatConverter conv = converter;
+        staging = conv != null ? new byte[STAGING_FRAMES * conv.getSrcFrameBytes()] : null;
+        discardConverted = false;
+    }
+
+    @Override
+    public void flush() {
+        discardConverted = true;
+        super.flush();
     }
 
     @Override
     public int read(byte[] bytes, int offset, int len) {
-        synchronized (this) {
+        return read(bytes, offset, len, NO_DEADLINE);
+    }
+
+    /**
+     * Reads like {@link #read(byte[], int, int)} but waits for captured data at most the timeout.
+     *
+     * @param timeout 0 or negative = reads only what is available now, Long.MAX_VALUE = no limit
+     * @return bytes read, possibly fewer than len
+     */
+    public int read(byte[] bytes, int offset, int len, long timeout, TimeUnit unit) {
+        return read(bytes, offset, len, toDeadline(timeout, unit));
+    }
+
+    /**
+     * @return bytes read without waiting, possibly fewer than len
+     */
+    public int readNonBlocking(byte[] bytes, int offset, int len) {
+        return read(bytes, offset, len, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private int read(byte[] bytes, int offset, int len, long deadlineNanos) {
+        if (len % getFormat().getFrameSize() != 0)
+            throw new IllegalArgumentException("Requesting to read non-integral number of frames (" + len + " bytes, " + "frameBytes = " + getFormat().getFrameSize() + " bytes)");
+        if (!lockIO(deadlineNanos))
+            // another read holds the line until the deadline
+            return 0;
+        try {
             flushing = false;
             if (len == 0)
                 return 0;
-            if (len % getFormat().getFrameSize() != 0)
-                throw new IllegalArgumentException("Requesting to read non-integral number of frames (" + len + " bytes, " + "frameBytes = " + getFormat().getFrameSize() + " bytes)");
             if (!active && inIO) {
                 setActive(true);
                 setStarted(true);
             }
-            int read = 0;
-            while (inIO && !flushing) {
-                int readInLoop;
-                logger.trace("Trying to read " + len + " bytes");
-                synchronized (lockNative) {
-                    readInLoop = SimpleMixer.nRead(nativePtr, bytes, offset, len);
-                    if (readInLoop < 0)
-                        // error in native layer
-                        break;
-                    bytePos += readInLoop;
-                    if (readInLoop > 0) {
-                        drained = false;
-                    }
-                }
-                logger.trace("Read " + readInLoop + " bytes");
-                len -= readInLoop;
-                read += readInLoop;
-                if (len > 0) {
-                    offset += readInLoop;
-                    synchronized (lock) {
-                        try {
-                            logger.trace("Waiting in read loop for " + checkTimeMS + "ms");
-                            lock.wait(checkTimeMS);
-                        } catch (InterruptedException ignored) {
-                        }
-                    }
-                } else {
-                    break;
-                }
-            }
+            int read = converter == null ? readFromDevice(bytes, offset, len, deadlineNanos) : readConverted(bytes, offset, len, deadlineNanos);
             if (flushing)
                 read = 0;
             return read;
+        } finally {
+            ioLock.unlock();
         }
     }
 
+    /**
+     * Reads device frames into the staging buffer and converts them to the line bytes.
+     *
+     * @return line bytes read
+     */
+    private int readConverted(byte[] bytes, int offset, int len, long deadlineNanos) {
+        FormatConverter conv = converter;
+        int lineFrameBytes = conv.getDstFrameBytes();
+        int deviceFrameBytes = conv.getSrcFrameBytes();
+        int stagingFrames = staging.length / deviceFrameBytes;
+        if (discardConverted) {
+            discardConverted = false;
+            conv.reset();
+        }
+        int read = 0;
+        while (len > 0 && inIO && !flushing) {
+            int frames = Math.min(conv.getMaxSrcFrames(len / lineFrameBytes), stagingFrames);
+            int deviceRead = readFromDevice(staging, 0, frames * deviceFrameBytes, deadlineNanos);
+            int converted = conv.convert(staging, 0, deviceRead / deviceFrameBytes, bytes, offset, len / lineFrameBytes);
+            offset += converted;
+            len -= converted;
+            read += converted;
+            if (deviceRead < frames * deviceFrameBytes)
+                // stopped, flushed, deadline passed or native error
+                break;
+        }
+        return read;
+    }
+
+    /**
+     * Reads from the native buffer, waiting for data while running, until the deadline.
+     *
+     * @return bytes read
+     */
+    private int readFromDevice(byte[] bytes, int offset, int len, long deadlineNanos) {
+        int read = 0;
+        while (inIO && !flushing) {
+            int readInLoop;
+            logger.trace("Trying to read " + len + " bytes");
+            synchronized (lockNative) {
+                readInLoop = SimpleMixer.nRead(nativePtr, bytes, offset, len);
+                if (readInLoop < 0)
+                    // error in native layer
+                    break;
+                bytePos += readInLoop;
+                if (readInLoop > 0) {
+                    drained = false;
+                }
+            }
+            logger.trace("Read " + readInLoop + " bytes");
+            len -= readInLoop;
+            read += readInLoop;
+            if (len > 0) {
+                offset += readInLoop;
+                if (!waitInIO(deadlineNanos))
+                    break;
+            } else {
+                break;
+            }
+        }
+        return read;
+    }
 }
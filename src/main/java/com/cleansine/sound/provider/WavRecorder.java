@@ -0,0 +1,451 @@
+package com.cleansine.sound.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.TargetDataLine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records an open TargetDataLine to a WAV file, switched to RF64 when exceeding 4GB.
+ * The capture thread reads the line into pooled direct buffers, the writer thread writes the filled buffers to the file
+ * by FileChannel gathering writes. The capture thread never waits for the disk - when no pooled buffer is free,
+ * the captured bytes are dropped and counted. The header sizes are finalized in {@link #stop()}.
+ * Samples not in WAV layout (big endian, signed 8 bits, unsigned 16+ bits) are converted.
+ */
+public final class WavRecorder {
+    private static final Logger logger = LoggerFactory.getLogger(WavRecorder.class);
+    private static final int DEFAULT_BUFFER_COUNT = 32;
+    private static final long POLL_MS = 10;
+    // RIFF + JUNK (reserved for ds64) headers, followed by fmt, fact (float only) and data
+    private static final int FMT_OFFSET = 48;
+    private static final int FACT_CHUNK_BYTES = 12;
+    private static final int DATA_HEADER_BYTES = 8;
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    private static final short WAVE_FORMAT_PCM = 1;
+    private static final short WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final short WAVE_FORMAT_EXTENSIBLE = (short) 0xFFFE;
+    // KSDATAFORMAT_SUBTYPE_* after the format tag
+    private static final byte[] SUBFORMAT_GUID_TAIL = {0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71};
+
+    private final TargetDataLine line;
+    private final Path path;
+    private final AudioFormat wavFormat;
+    @Nullable
+    private final FormatConverter converter;
+    private final int lineChunkBytes;
+    private final int wavChunkBytes;
+    private final int bufferCount;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers;
+
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private Thread captureThread;
+    @Nullable
+    private Thread writerThread;
+    private volatile boolean isCapturing;
+    private volatile boolean isWriting;
+    @Nullable
+    private volatile IOException writeError;
+
+    // metrics
+    private volatile long capturedBytes;
+    private volatile long writtenBytes;
+    private volatile long droppedBytes;
+    private volatile int maxQueuedBuffers;
+    private volatile long maxWriteNanos;
+
+    public WavRecorder(@Nonnull TargetDataLine line, @Nonnull Path path) {
+        this(line, path, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount pooled buffers, each of a quarter of the line buffer. Their total covers disk stalls.
+     */
+    public WavRecorder(@Nonnull TargetDataLine line, @Nonnull Path path, int bufferCount) {
+        if (!line.isOpen())
+            throw new IllegalStateException("Line must be open");
+        if (bufferCount < 2)
+            throw new IllegalArgumentException("At least 2 buffers required");
+        AudioFormat lineFormat = line.getFormat();
+        this.line = line;
+        this.path = path;
+        this.wavFormat = getWavFormat(lineFormat);
+        if (wavFormat.matches(lineFormat) && wavFormat.getFrameSize() == lineFormat.getFrameSize())
+            this.converter = null;
+        else {
+            this.converter = FormatConverter.create(lineFormat, wavFormat);
+            if (converter == null)
+                throw new IllegalArgumentException("Unsupported format " + lineFormat);
+        }
+        int chunkFrames = Math.max(1, line.getBufferSize() / lineFormat.getFrameSize() / 4);
+        this.lineChunkBytes = chunkFrames * lineFormat.getFrameSize();
+        this.wavChunkBytes = chunkFrames * wavFormat.getFrameSize();
+        this.bufferCount = bufferCount;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        this.filledBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i)
+            freeBuffers.add(ByteBuffer.allocateDirect(wavChunkBytes));
+    }
+
+    // little endian, 8 bits unsigned, more bits signed, 32-bit float
+    @Nonnull
+    static AudioFormat getWavFormat(@Nonnull AudioFormat format) {
+        int bits = format.getSampleSizeInBits();
+        int channels = format.getChannels();
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()))
+            return new DistinctableAudioFormat(AudioFormat.Encoding.PCM_FLOAT, format.getSampleRate(), 32, channels, 4 * channels, false);
+        int bytes = (bits + 7) / 8;
+        AudioFormat.Encoding encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        return new DistinctableAudioFormat(encoding, format.getSampleRate(), bytes * 8, channels, bytes * channels, false);
+    }
+
+    @Nonnull
+    public AudioFormat getWavFormat() {
+        return wavFormat;
+    }
+
+    /**
+     * Creates the file with a provisional header, starts the line, the capture and writer threads.
+     */
+    public synchronized void start() throws IOException {
+        if (captureThread != null)
+            throw new IllegalStateException("Already started");
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ch.write(createHeader(wavFormat), 0);
+        ch.position(getHeaderBytes(wavFormat));
+        channel = ch;
+        isCapturing = true;
+        isWriting = true;
+        writerThread = new Thread(this::runWriter, "csjsound wav writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        captureThread = new Thread(this::runCapture, "csjsound wav capture");
+        captureThread.setDaemon(true);
+        line.start();
+        captureThread.start();
+    }
+
+    /**
+     * Stops capturing and the line, writes the queued buffers, finalizes the header and closes the file.
+     */
+    public synchronized void stop() throws IOException {
+        if (captureThread == null)
+            return;
+        isCapturing = false;
+        join(captureThread);
+        line.stop();
+        // the writer empties the queue before finishing
+        isWriting = false;
+        join(writerThread);
+        captureThread = null;
+        writerThread = null;
+        FileChannel ch = channel;
+        channel = null;
+        try {
+            finalizeHeader(ch, wavFormat, writtenBytes, path);
+        } finally {
+            ch.close();
+        }
+        if (writeError != null)
+            throw writeError;
+    }
+
+    private static void join(@Nonnull Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return bytes read from the line, in the WAV format
+     */
+    public long getCapturedBytes() {
+        return capturedBytes;
+    }
+
+    /**
+     * @return audio bytes written to the file
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * @return captured bytes dropped because no pooled buffer was free, i.e. the disk was stalled for the whole pool
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return buffers currently waiting for the writer
+     */
+    public int getQueuedBuffers() {
+        return filledBuffers.size();
+    }
+
+    /**
+     * @return max. buffers waiting for the writer so far, of {@link #getBufferCount()}
+     */
+    public int getMaxQueuedBuffers() {
+        return maxQueuedBuffers;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    /**
+     * @return longest single write to the file so far, in nanoseconds
+     */
+    public long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    private void runCapture() {
+        byte[] lineBytes = new byte[lineChunkBytes];
+        byte[] wavBytes = converter != null ? new byte[wavChunkBytes] : lineBytes;
+        int lineFrameBytes = line.getFormat().getFrameSize();
+        while (isCapturing) {
+            int read = line.read(lineBytes, 0, lineBytes.length);
+            if (read <= 0) {
+                if (!line.isOpen()) {
+                    // the file is finalized by stop()
+                    logger.warn("Recorded line closed, capture ended");
+                    isCapturing = false;
+                    break;
+                }
+                // the read does not wait in a line stopped meanwhile
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MS));
+                continue;
+            }
+            int frames = read / lineFrameBytes;
+            int bytes = converter != null ? converter.convert(lineBytes, 0, frames, wavBytes, 0, frames) : read;
+            capturedBytes += bytes;
+            ByteBuffer buffer = freeBuffers.poll();
+            if (buffer == null) {
+                // never waiting for the disk
+                droppedBytes += bytes;
+                continue;
+            }
+            buffer.clear();
+            buffer.put(wavBytes, 0, bytes);
+            buffer.flip();
+            filledBuffers.add(buffer);
+            int queued = filledBuffers.size();
+            if (queued > maxQueuedBuffers)
+                maxQueuedBuffers = queued;
+        }
+    }
+
+    private void runWriter() {
+        ByteBuffer[] batch = new ByteBuffer[bufferCount];
+        while (true) {
+            ByteBuffer first;
+            try {
+                first = filledBuffers.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.warn("WAV writer interrupted");
+                break;
+            }
+            if (first == null) {
+                if (!isWriting && filledBuffers.isEmpty())
+                    break;
+                continue;
+            }
+            batch[0] = first;
+            int count = 1;
+            ByteBuffer next;
+            while (count < batch.length && (next = filledBuffers.poll()) != null)
+                batch[count++] = next;
+            write(batch, count);
+            for (int i = 0; i < count; ++i) {
+                freeBuffers.add(batch[i]);
+                batch[i] = null;
+            }
+        }
+    }
+
+    private void write(@Nonnull ByteBuffer[] batch, int count) {
+        if (writeError != null)
+            // keeps the buffers circulating, the error is reported by stop()
+            return;
+        long start = System.nanoTime();
+        try {
+            long remaining = 0;
+            for (int i = 0; i < count; ++i)
+                remaining += batch[i].remaining();
+            while (remaining > 0) {
+                long written = channel.write(batch, 0, count);
+                remaining -= written;
+                writtenBytes += written;
+            }
+        } catch (IOException e) {
+            logger.error("Writing to " + path + " failed", e);
+            writeError = e;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (elapsed > maxWriteNanos)
+            maxWriteNanos = elapsed;
+    }
+
+    private static boolean isFloat(@Nonnull AudioFormat wavFormat) {
+        return AudioFormat.Encoding.PCM_FLOAT.equals(wavFormat.getEncoding());
+    }
+
+    // more than 2 channels or 16 bits need the channel mask and valid bits
+    private static boolean isExtensible(@Nonnull AudioFormat wavFormat) {
+        return wavFormat.getChannels() > 2 || wavFormat.getSampleSizeInBits() > 16;
+    }
+
+    private static int getFmtSize(@Nonnull AudioFormat wavFormat) {
+        if (isExtensible(wavFormat))
+            return 40;
+        // non-PCM formats carry cbSize
+        return isFloat(wavFormat) ? 18 : 16;
+    }
+
+    private static int getDataSizeOffset(@Nonnull AudioFormat wavFormat) {
+        return getHeaderBytes(wavFormat) - 4;
+    }
+
+    /**
+     * @return bytes of the header preceding the samples
+     */
+    static int getHeaderBytes(@Nonnull AudioFormat wavFormat) {
+        return FMT_OFFSET + 8 + getFmtSize(wavFormat) + (isFloat(wavFormat) ? FACT_CHUNK_BYTES : 0) + DATA_HEADER_BYTES;
+    }
+
+    /**
+     * Speaker positions of the usual layouts (mono, stereo, 3.0, quad, 5.0, 5.1, 6.1, 7.1), none for others.
+     */
+    private static int getChannelMask(int channels) {
+        switch (channels) {
+            case 1:
+                return 0x4;
+            case 2:
+                return 0x3;
+            case 3:
+                return 0x7;
+            case 4:
+                return 0x33;
+            case 5:
+                return 0x37;
+            case 6:
+                return 0x3F;
+            case 7:
+                return 0x13F;
+            case 8:
+                return 0x63F;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return provisional header with zero sizes, getHeaderBytes() long
+     */
+    @Nonnull
+    static ByteBuffer createHeader(@Nonnull AudioFormat wavFormat) {
+        ByteBuffer header = ByteBuffer.allocate(getHeaderBytes(wavFormat)).order(ByteOrder.LITTLE_ENDIAN);
+        boolean isFloat = isFloat(wavFormat);
+        boolean isExtensible = isExtensible(wavFormat);
+        short formatTag = isFloat ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM;
+        int channels = wavFormat.getChannels();
+        int frameBytes = wavFormat.getFrameSize();
+        int rate = (int) wavFormat.getSampleRate();
+        header.put(ascii("RIFF")).putInt(0).put(ascii("WAVE"));
+        // placeholder replaced by ds64 for RF64
+        header.put(ascii("JUNK")).putInt(28).put(new byte[28]);
+        header.put(ascii("fmt ")).putInt(getFmtSize(wavFormat))
+                .putShort(isExtensible ? WAVE_FORMAT_EXTENSIBLE : formatTag)
+                .putShort((short) channels)
+                .putInt(rate)
+                .putInt(rate * frameBytes)
+                .putShort((short) frameBytes)
+                // container bits, the valid bits follow in the extension
+                .putShort((short) (isExtensible ? frameBytes / channels * 8 : wavFormat.getSampleSizeInBits()));
+        if (isExtensible) {
+            header.putShort((short) 22)
+                    .putShort((short) wavFormat.getSampleSizeInBits())
+                    .putInt(getChannelMask(channels))
+                    .putInt(formatTag)
+                    .put(SUBFORMAT_GUID_TAIL);
+        } else if (isFloat) {
+            header.putShort((short) 0);
+        }
+        if (isFloat)
+            // frame count set by finalizeHeader()
+            header.put(ascii("fact")).putInt(4).putInt(0);
+        header.put(ascii("data")).putInt(0);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Pads an odd data chunk and writes the sizes to the header, as RF64 if the file exceeds 4GB.
+     */
+    static void finalizeHeader(@Nonnull FileChannel ch, @Nonnull AudioFormat wavFormat, long dataBytes, @Nonnull Path path) throws IOException {
+        int headerBytes = getHeaderBytes(wavFormat);
+        long padBytes = dataBytes & 1;
+        ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        if (padBytes > 0) {
+            // chunks are word aligned, the pad byte is not part of the data size
+            buf.put((byte) 0).flip();
+            ch.write(buf, headerBytes + dataBytes);
+            buf.clear();
+        }
+        long riffSize = headerBytes - 8 + dataBytes + padBytes;
+        long frames = dataBytes / wavFormat.getFrameSize();
+        int dataSizeOffset = getDataSizeOffset(wavFormat);
+        if (riffSize <= MAX_RIFF_SIZE) {
+            buf.putInt((int) riffSize).flip();
+            ch.write(buf, 4);
+            buf.clear();
+            buf.putInt((int) dataBytes).flip();
+            ch.write(buf, dataSizeOffset);
+        } else {
+            ByteBuffer rf64 = ByteBuffer.allocate(FMT_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+            rf64.put(ascii("RF64")).putInt(-1).put(ascii("WAVE"));
+            rf64.put(ascii("ds64")).putInt(28)
+                    .putLong(riffSize)
+                    .putLong(dataBytes)
+                    .putLong(frames)
+                    // no table
+                    .putInt(0);
+            rf64.flip();
+            ch.write(rf64, 0);
+            buf.putInt(-1).flip();
+            ch.write(buf, dataSizeOffset);
+        }
+        if (isFloat(wavFormat)) {
+            buf.clear();
+            // the ds64 sample count applies for RF64
+            buf.putInt(frames <= MAX_RIFF_SIZE ? (int) frames : -1).flip();
+            ch.write(buf, dataSizeOffset - 8);
+        }
+        logger.debug("Finalized " + path + " with " + dataBytes + " data bytes" + (riffSize > MAX_RIFF_SIZE ? " as RF64" : ""));
+    }
+
+    @Nonnull
+    private static byte[] ascii(@Nonnull String id) {
+        return id.getBytes(StandardCharsets.US_ASCII);
+    }
+}